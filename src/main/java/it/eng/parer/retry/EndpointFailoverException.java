@@ -0,0 +1,32 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Errore permanente su un singolo endpoint: l'endpoint viene messo in quarantena e il tentativo
+ * successivo viene indirizzato ad un altro endpoint. È sempre considerata transitoria da
+ * {@link ParerExceptionClassifier}.
+ *
+ * @author Snidero_L
+ */
+public class EndpointFailoverException extends RestClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public EndpointFailoverException(String msg, Throwable ex) {
+        super(msg, ex);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Stato di un singolo endpoint invocato da {@link RestRetryInterceptor}.
+ *
+ * @author Snidero_L
+ */
+class EndpointState {
+
+    /**
+     * Esito di {@link EndpointState#tryRoute(long, long)}.
+     */
+    enum Route {
+        /**
+         * Endpoint escluso.
+         */
+        REFUSED,
+        /**
+         * Endpoint disponibile.
+         */
+        ROUTED,
+        /**
+         * Endpoint escluso, il tentativo è la richiesta di prova: l'esito va comunicato con
+         * <code>probe</code> pari a true.
+         */
+        PROBE
+    }
+
+    private final AtomicIntegerArray inFlight = new AtomicIntegerArray(RetryLane.values().length);
+    private final AtomicInteger totalInFlight = new AtomicInteger(0);
+    private final AtomicInteger encoding = new AtomicInteger(0);
+    private volatile long encodingRejectedSince;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+    private volatile long downSince;
+    private volatile boolean down;
+
+    private volatile long quarantinedSince;
+    private volatile boolean quarantined;
+
+    /**
+     * Occupa uno slot in-flight dell'endpoint, nel rispetto sia del limite complessivo sia della
+     * quota della lane.
+     *
+     * @param lane       lane della richiesta
+     * @param laneLimit  numero massimo di chiamate contemporanee per la lane
+     * @param totalLimit numero massimo di chiamate contemporanee per l'endpoint (tutte le lane)
+     *
+     * @return true se lo slot è stato occupato
+     */
+    boolean tryAcquire(RetryLane lane, int laneLimit, int totalLimit) {
+        if (!increment(totalInFlight, totalLimit)) {
+            return false;
+        }
+        final int i = lane.ordinal();
+        int current;
+        do {
+            current = inFlight.get(i);
+            if (current >= laneLimit) {
+                totalInFlight.decrementAndGet();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(i, current, current + 1));
+        return true;
+    }
+
+    private static boolean increment(AtomicInteger counter, int limit) {
+        int current;
+        do {
+            current = counter.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!counter.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void release(RetryLane lane) {
+        inFlight.decrementAndGet(lane.ordinal());
+        totalInFlight.decrementAndGet();
+    }
+
+    int getTotalInFlight() {
+        return totalInFlight.get();
+    }
+
+    int getInFlight(RetryLane lane) {
+        return inFlight.get(lane.ordinal());
+    }
+
+    /**
+     * Indice della codifica del corpo (vedi {@link ParerRetryConfiguration#getRequestEncoders()})
+     * accettata dall'endpoint. Trascorso il periodo indicato dall'ultimo rifiuto si torna alla
+     * codifica preferita.
+     *
+     * @param now         istante corrente ({@link System#nanoTime()})
+     * @param periodNanos periodo dopo cui riprovare la codifica preferita in ns
+     *
+     * @return indice della codifica; se oltre l'ultima codifica il corpo va inviato non compresso
+     */
+    int getEncoding(long now, long periodNanos) {
+        int current = encoding.get();
+        if (current > 0 && now - encodingRejectedSince >= periodNanos
+                && encoding.compareAndSet(current, 0)) {
+            return 0;
+        }
+        return encoding.get();
+    }
+
+    /**
+     * L'endpoint ha rifiutato la codifica indicata: si passa alla successiva.
+     *
+     * @param rejected indice della codifica rifiutata
+     * @param now      istante corrente ({@link System#nanoTime()})
+     */
+    void rejectEncoding(int rejected, long now) {
+        encodingRejectedSince = now;
+        encoding.compareAndSet(rejected, rejected + 1);
+    }
+
+    /**
+     * Indica se l'endpoint può ricevere un tentativo. Un endpoint escluso torna disponibile, per
+     * una sola richiesta di prova alla volta, trascorso il periodo di esclusione.
+     *
+     * @param now           istante corrente ({@link System#nanoTime()})
+     * @param holdDownNanos durata minima dell'esclusione in ns
+     *
+     * @return esito della scelta dell'endpoint
+     */
+    Route tryRoute(long now, long holdDownNanos) {
+        if (!down) {
+            return Route.ROUTED;
+        }
+        if (now - downSince < holdDownNanos) {
+            return Route.REFUSED;
+        }
+        return probing.compareAndSet(false, true) ? Route.PROBE : Route.REFUSED;
+    }
+
+    /**
+     * Tentativo riuscito: l'endpoint torna disponibile.
+     *
+     * @param probe true se il tentativo era la richiesta di prova
+     */
+    void onSuccess(boolean probe) {
+        consecutiveFailures.set(0);
+        down = false;
+        if (probe) {
+            probing.set(false);
+        }
+    }
+
+    /**
+     * Tentativo fallito: raggiunta la soglia di fallimenti consecutivi, oppure se il tentativo era
+     * la richiesta di prova, l'endpoint viene escluso.
+     *
+     * @param now       istante corrente ({@link System#nanoTime()})
+     * @param threshold numero di fallimenti consecutivi che determinano l'esclusione
+     * @param probe     true se il tentativo era la richiesta di prova
+     */
+    void onFailure(long now, int threshold, boolean probe) {
+        if (consecutiveFailures.incrementAndGet() >= threshold || probe) {
+            downSince = now;
+            down = true;
+        }
+        if (probe) {
+            probing.set(false);
+        }
+    }
+
+    /**
+     * La richiesta di prova non è stata inviata: la prova torna disponibile.
+     */
+    void releaseProbe() {
+        probing.set(false);
+    }
+
+    boolean isDown() {
+        return down;
+    }
+
+    /**
+     * Mette l'endpoint in quarantena a seguito di un errore permanente.
+     *
+     * @param now istante corrente ({@link System#nanoTime()})
+     */
+    void quarantine(long now) {
+        quarantinedSince = now;
+        quarantined = true;
+    }
+
+    /**
+     * Indica se l'endpoint è in quarantena.
+     *
+     * @param now         istante corrente ({@link System#nanoTime()})
+     * @param periodNanos durata della quarantena in ns
+     *
+     * @return true se l'endpoint è in quarantena
+     */
+    boolean isQuarantined(long now, long periodNanos) {
+        if (!quarantined) {
+            return false;
+        }
+        if (now - quarantinedSince < periodNanos) {
+            return true;
+        }
+        quarantined = false;
+        return false;
+    }
+
+    void clearQuarantine() {
+        if (quarantined) {
+            quarantined = false;
+        }
+    }
+}
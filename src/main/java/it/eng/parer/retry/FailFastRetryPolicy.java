@@ -0,0 +1,60 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryPolicy;
+
+/**
+ * {@link RetryPolicy} che interrompe i tentativi quando l'ultima eccezione è classificata come
+ * permanente da {@link ParerExceptionClassifier}.
+ *
+ * @author Snidero_L
+ */
+public class FailFastRetryPolicy implements RetryPolicy {
+
+    private static final long serialVersionUID = 1L;
+
+    private final RetryPolicy delegate;
+    private final ParerExceptionClassifier classifier;
+
+    public FailFastRetryPolicy(RetryPolicy delegate, ParerExceptionClassifier classifier) {
+        this.delegate = delegate;
+        this.classifier = classifier;
+    }
+
+    @Override
+    public boolean canRetry(RetryContext context) {
+        Throwable lastThrowable = context.getLastThrowable();
+        if (lastThrowable != null && classifier.isPermanent(lastThrowable)) {
+            return false;
+        }
+        return delegate.canRetry(context);
+    }
+
+    @Override
+    public RetryContext open(RetryContext parent) {
+        return delegate.open(parent);
+    }
+
+    @Override
+    public void close(RetryContext context) {
+        delegate.close(context);
+    }
+
+    @Override
+    public void registerThrowable(RetryContext context, Throwable throwable) {
+        delegate.registerThrowable(context, throwable);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.AbstractClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Richiesta creata da {@link JdkClientHttpRequestFactory}. Il corpo viene bufferizzato e inviato
+ * in un'unica soluzione.
+ *
+ * @author Snidero_L
+ */
+final class JdkClientHttpRequest extends AbstractClientHttpRequest {
+
+    // header gestiti direttamente da HttpClient, che non possono essere impostati
+    private static final List<String> RESTRICTED_HEADERS = Arrays.asList("connection",
+            "content-length", "expect", "host", "upgrade");
+
+    private final HttpClient httpClient;
+    private final URI uri;
+    private final HttpMethod method;
+    private final Duration timeout;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+    JdkClientHttpRequest(HttpClient httpClient, URI uri, HttpMethod method, Duration timeout) {
+        this.httpClient = httpClient;
+        this.uri = uri;
+        this.method = method;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String getMethodValue() {
+        return method.name();
+    }
+
+    @Override
+    public URI getURI() {
+        return uri;
+    }
+
+    @Override
+    protected OutputStream getBodyInternal(HttpHeaders headers) {
+        return body;
+    }
+
+    @Override
+    protected ClientHttpResponse executeInternal(HttpHeaders headers) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        if (timeout != null) {
+            builder.timeout(timeout);
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (RESTRICTED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                builder.header(header.getKey(), value);
+            }
+        }
+        HttpRequest.BodyPublisher publisher = body.size() > 0
+                ? HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())
+                : HttpRequest.BodyPublishers.noBody();
+        builder.method(method.name(), publisher);
+
+        try {
+            HttpResponse<InputStream> response = httpClient.send(builder.build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            return new JdkClientHttpResponse(response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException(
+                    "Chiamata interrotta verso " + uri);
+            interrupted.initCause(e);
+            throw interrupted;
+        }
+    }
+}
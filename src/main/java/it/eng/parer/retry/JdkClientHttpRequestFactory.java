@@ -0,0 +1,107 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+
+/**
+ * {@link ClientHttpRequestFactory} basata su {@link HttpClient} del JDK, con HTTP/2 abilitato.
+ *
+ * Con HTTP/2 le chiamate contemporanee verso lo stesso endpoint condividono (multiplexing) poche
+ * connessioni; per ciascun endpoint utilizzato da {@link RestRetryInterceptor} viene aperta una
+ * connessione dedicata, per cui il passaggio da un endpoint all'altro non è influenzato dallo
+ * stato delle connessioni verso gli altri. Gli endpoint che non supportano HTTP/2 vengono invocati
+ * con HTTP/1.1.
+ *
+ * L'{@link HttpClient} è condiviso da tutte le richieste create dalla factory, che va quindi
+ * istanziata una sola volta e riutilizzata.
+ *
+ * Il timeout di lettura ({@link #setReadTimeout(Duration)}) limita l'attesa degli header della
+ * risposta, non la lettura del corpo: a differenza di
+ * <code>HttpComponentsClientHttpRequestFactory</code>, un endpoint che interrompe l'invio del
+ * corpo dopo gli header non viene rilevato come timeout.
+ *
+ * @author Snidero_L
+ */
+public class JdkClientHttpRequestFactory implements ClientHttpRequestFactory {
+
+    private final HttpClient httpClient;
+    private Duration readTimeout;
+
+    /**
+     * Factory con timeout di connessione e di attesa della risposta.
+     *
+     * @param timeoutMillis timeout in ms (vedi {@link RestConfiguratorHelper#clientTimeout()})
+     */
+    public JdkClientHttpRequestFactory(int timeoutMillis) {
+        this(HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofMillis(timeoutMillis)).build());
+        this.readTimeout = Duration.ofMillis(timeoutMillis);
+    }
+
+    /**
+     * Factory con timeout di connessione e di attesa della risposta e con l'executor indicato per
+     * le attività asincrone del client (es. <code>Executors.newVirtualThreadPerTaskExecutor()</code>
+     * su JDK 21+).
+     *
+     * @param timeoutMillis timeout in ms (vedi {@link RestConfiguratorHelper#clientTimeout()})
+     * @param executor      executor del client
+     */
+    public JdkClientHttpRequestFactory(int timeoutMillis, Executor executor) {
+        this(HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofMillis(timeoutMillis)).executor(executor).build());
+        this.readTimeout = Duration.ofMillis(timeoutMillis);
+    }
+
+    /**
+     * Factory basata su un {@link HttpClient} già configurato.
+     *
+     * @param httpClient client da utilizzare
+     */
+    public JdkClientHttpRequestFactory(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Timeout per la ricezione degli header della risposta di ciascuna richiesta. La lettura del
+     * corpo non è soggetta a timeout.
+     *
+     * @param readTimeout timeout oppure null per nessun timeout
+     */
+    public void setReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) {
+        return new JdkClientHttpRequest(httpClient, uri, httpMethod, readTimeout);
+    }
+}
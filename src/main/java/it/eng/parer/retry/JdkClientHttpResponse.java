@@ -0,0 +1,78 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Risposta ottenuta tramite {@link JdkClientHttpRequest}.
+ *
+ * @author Snidero_L
+ */
+final class JdkClientHttpResponse implements ClientHttpResponse {
+
+    private final HttpResponse<InputStream> response;
+    private final HttpHeaders headers;
+
+    JdkClientHttpResponse(HttpResponse<InputStream> response) {
+        this.response = response;
+        // con HTTP/2 i nomi degli header sono in minuscolo: HttpHeaders non distingue maiuscole e
+        // minuscole
+        HttpHeaders map = new HttpHeaders();
+        response.headers().map().forEach(map::addAll);
+        this.headers = HttpHeaders.readOnlyHttpHeaders(map);
+    }
+
+    @Override
+    public HttpStatus getStatusCode() {
+        return HttpStatus.valueOf(response.statusCode());
+    }
+
+    @Override
+    public int getRawStatusCode() {
+        return response.statusCode();
+    }
+
+    @Override
+    public String getStatusText() {
+        HttpStatus status = HttpStatus.resolve(response.statusCode());
+        return status != null ? status.getReasonPhrase() : "";
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public InputStream getBody() {
+        return response.body();
+    }
+
+    @Override
+    public void close() {
+        try {
+            // chiudendo lo stream la connessione (o lo stream HTTP/2) viene rilasciata
+            response.body().close();
+        } catch (IOException e) {
+            // nessuna azione: la risposta non è più utilizzabile
+        }
+    }
+}
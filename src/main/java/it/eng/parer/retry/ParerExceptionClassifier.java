@@ -0,0 +1,85 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import org.springframework.classify.BinaryExceptionClassifier;
+
+/**
+ * Classificatore delle eccezioni in transitorie (per cui ha senso un nuovo tentativo) e
+ * permanenti. La classificazione considera anche le cause dell'eccezione; le eccezioni non
+ * classificate sono transitorie.
+ *
+ * Sono permanenti in modo predefinito:
+ * <ul>
+ * <li>{@link UnknownHostException}</li>
+ * <li>{@link MalformedURLException} e {@link URISyntaxException} (URI non validi)</li>
+ * <li>{@link SSLHandshakeException} e {@link SSLPeerUnverifiedException} (errori TLS)</li>
+ * </ul>
+ *
+ * @author Snidero_L
+ */
+public class ParerExceptionClassifier extends BinaryExceptionClassifier {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Classificatore con le sole classificazioni predefinite.
+     */
+    public ParerExceptionClassifier() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+     * Classificatore con classificazioni aggiuntive, che prevalgono su quelle predefinite.
+     *
+     * @param typeMap mappa tipo di eccezione / transitoria (true) o permanente (false)
+     */
+    public ParerExceptionClassifier(Map<Class<? extends Throwable>, Boolean> typeMap) {
+        super(typeMap(typeMap), true, true);
+    }
+
+    private static Map<Class<? extends Throwable>, Boolean> typeMap(
+            Map<Class<? extends Throwable>, Boolean> custom) {
+        Map<Class<? extends Throwable>, Boolean> map = new HashMap<>();
+        map.put(UnknownHostException.class, Boolean.FALSE);
+        map.put(MalformedURLException.class, Boolean.FALSE);
+        map.put(URISyntaxException.class, Boolean.FALSE);
+        map.put(SSLHandshakeException.class, Boolean.FALSE);
+        map.put(SSLPeerUnverifiedException.class, Boolean.FALSE);
+        map.putAll(custom);
+        map.put(EndpointFailoverException.class, Boolean.TRUE);
+        return map;
+    }
+
+    /**
+     * Indica se l'eccezione è permanente.
+     *
+     * @param throwable eccezione
+     *
+     * @return true se non ha senso effettuare un nuovo tentativo
+     */
+    public boolean isPermanent(Throwable throwable) {
+        return !classify(throwable);
+    }
+}
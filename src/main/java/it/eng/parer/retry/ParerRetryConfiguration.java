@@ -13,6 +13,13 @@
 
 package it.eng.parer.retry;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.springframework.retry.RecoveryCallback;
 import org.springframework.retry.RetryCallback;
 import org.springframework.retry.support.RetryTemplate;
@@ -26,6 +33,21 @@ import org.springframework.retry.support.RetryTemplate;
 public class ParerRetryConfiguration {
 
     private RetryTemplate retryTemplate;
+    private int attemptTraceCapacity;
+    private int maxInFlightPerEndpoint;
+    private double inFlightShare = 1.0d;
+    private Map<RetryLane, ParerRetryConfiguration> lanes = Collections.emptyMap();
+    private int compressionThreshold;
+    private long encodingRetryPeriod;
+    private ParerExceptionClassifier exceptionClassifier = new ParerExceptionClassifier();
+    private long quarantinePeriod;
+    private boolean idempotencyKey = true;
+    private boolean nonIdempotentRetryAfterSend;
+    private RoutingMode routingMode = RoutingMode.ROUND_ROBIN;
+    private long failbackDelay;
+    private int failbackFailureThreshold = 1;
+    private List<RequestBodyEncoder> requestEncoders = Collections.emptyList();
+    private Map<String, String> parametri = Collections.emptyMap();
 
     /**
      * Fluent builder del client.
@@ -49,6 +71,195 @@ public class ParerRetryConfiguration {
         this.retryTemplate = retryTemplate;
     }
 
+    protected void setAttemptTraceCapacity(int attemptTraceCapacity) {
+        this.attemptTraceCapacity = attemptTraceCapacity;
+    }
+
+    protected void setMaxInFlightPerEndpoint(int maxInFlightPerEndpoint) {
+        this.maxInFlightPerEndpoint = maxInFlightPerEndpoint;
+    }
+
+    protected void setInFlightShare(double inFlightShare) {
+        this.inFlightShare = inFlightShare;
+    }
+
+    protected void setLanes(Map<RetryLane, ParerRetryConfiguration> lanes) {
+        this.lanes = lanes.isEmpty() ? Collections.emptyMap() : new EnumMap<>(lanes);
+    }
+
+    protected void setRequestCompression(int compressionThreshold,
+            List<RequestBodyEncoder> requestEncoders, long encodingRetryPeriod) {
+        this.compressionThreshold = compressionThreshold;
+        this.encodingRetryPeriod = encodingRetryPeriod;
+        this.requestEncoders = Collections.unmodifiableList(new ArrayList<>(requestEncoders));
+    }
+
+    protected void setRouting(RoutingMode routingMode, long failbackDelay,
+            int failbackFailureThreshold) {
+        this.routingMode = routingMode;
+        this.failbackDelay = failbackDelay;
+        this.failbackFailureThreshold = failbackFailureThreshold;
+    }
+
+    protected void setExceptionClassifier(ParerExceptionClassifier exceptionClassifier,
+            long quarantinePeriod) {
+        this.exceptionClassifier = exceptionClassifier;
+        this.quarantinePeriod = quarantinePeriod;
+    }
+
+    protected void setIdempotency(boolean idempotencyKey, boolean nonIdempotentRetryAfterSend) {
+        this.idempotencyKey = idempotencyKey;
+        this.nonIdempotentRetryAfterSend = nonIdempotentRetryAfterSend;
+    }
+
+    protected void setParametri(Map<String, String> parametri) {
+        this.parametri = Collections.unmodifiableMap(new LinkedHashMap<>(parametri));
+    }
+
+    /**
+     * Numero di tentativi conservati nella traccia di {@link RestRetryInterceptor}.
+     *
+     * @return capacità della traccia, 0 se non abilitata
+     */
+    public int getAttemptTraceCapacity() {
+        return attemptTraceCapacity;
+    }
+
+    /**
+     * Numero massimo di chiamate contemporanee verso ciascun endpoint, condiviso da tutte le lane.
+     *
+     * @return numero massimo di chiamate, 0 se non limitato
+     */
+    public int getMaxInFlightPerEndpoint() {
+        return maxInFlightPerEndpoint;
+    }
+
+    /**
+     * Quota del numero massimo di chiamate contemporanee per endpoint utilizzabile, al più, dalle
+     * richieste della lane.
+     *
+     * @return quota compresa tra 0 (escluso) e 1
+     */
+    public double getInFlightShare() {
+        return inFlightShare;
+    }
+
+    /**
+     * Dimensione minima del corpo delle richieste da comprimere.
+     *
+     * @return soglia in byte
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Codifiche del corpo delle richieste, in ordine di preferenza.
+     *
+     * @return lista (non modificabile) delle codifiche, vuota se la compressione non è abilitata
+     */
+    public List<RequestBodyEncoder> getRequestEncoders() {
+        return requestEncoders;
+    }
+
+    /**
+     * Periodo dopo cui un endpoint che ha rifiutato una codifica torna a ricevere la codifica
+     * preferita.
+     *
+     * @return periodo in ms
+     */
+    public long getEncodingRetryPeriod() {
+        return encodingRetryPeriod;
+    }
+
+    /**
+     * Classificatore delle eccezioni in transitorie e permanenti.
+     *
+     * @return classificatore delle eccezioni
+     */
+    public ParerExceptionClassifier getExceptionClassifier() {
+        return exceptionClassifier;
+    }
+
+    /**
+     * Periodo di quarantena degli endpoint che falliscono in modo permanente.
+     *
+     * @return periodo in ms, 0 se la quarantena non è abilitata
+     */
+    public long getQuarantinePeriod() {
+        return quarantinePeriod;
+    }
+
+    /**
+     * Indica se aggiungere l'header {@link RestRetryInterceptor#IDEMPOTENCY_KEY_HEADER} alle
+     * richieste non idempotenti.
+     *
+     * @return true se l'header viene aggiunto
+     */
+    public boolean isIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    /**
+     * Indica se le richieste non idempotenti vengono ripetute anche dopo un errore successivo
+     * all'invio.
+     *
+     * @return true se le richieste vengono ripetute
+     */
+    public boolean isNonIdempotentRetryAfterSend() {
+        return nonIdempotentRetryAfterSend;
+    }
+
+    /**
+     * Modalità di scelta dell'endpoint di ciascun tentativo.
+     *
+     * @return modalità di routing
+     */
+    public RoutingMode getRoutingMode() {
+        return routingMode;
+    }
+
+    /**
+     * Periodo minimo di esclusione di un endpoint fallito (solo per
+     * {@link RoutingMode#PREFERRED_AFFINITY}).
+     *
+     * @return periodo in ms
+     */
+    public long getFailbackDelay() {
+        return failbackDelay;
+    }
+
+    /**
+     * Numero di fallimenti consecutivi che determinano l'esclusione di un endpoint (solo per
+     * {@link RoutingMode#PREFERRED_AFFINITY}).
+     *
+     * @return numero di fallimenti
+     */
+    public int getFailbackFailureThreshold() {
+        return failbackFailureThreshold;
+    }
+
+    /**
+     * Configurazione da utilizzare per la lane indicata.
+     *
+     * @param lane lane di priorità
+     *
+     * @return configurazione della lane oppure questa configurazione se la lane non è configurata
+     */
+    public ParerRetryConfiguration forLane(RetryLane lane) {
+        ParerRetryConfiguration laneConfiguration = lanes.get(lane);
+        return laneConfiguration != null ? laneConfiguration : this;
+    }
+
+    /**
+     * Parametri impostati tramite {@link ParerRetryConfigurationBuilder}.
+     *
+     * @return mappa (non modificabile) nome parametro / valore
+     */
+    public Map<String, String> getParametri() {
+        return parametri;
+    }
+
     /**
      * Delegate per l'esecuzione del metodo sottoposto a retry.
      *
@@ -82,4 +293,22 @@ public class ParerRetryConfiguration {
         return retryTemplate.execute(metodo);
     }
 
+    /**
+     * Delegate per l'esecuzione del metodo sottoposto a retry con la configurazione della lane
+     * indicata.
+     *
+     * @param <R>    Risultato atteso
+     * @param <E>    Eccezione per cui si effettua il retry
+     * @param lane   lane di priorità
+     * @param metodo callback, ovvero metodo che deve essere eseguito
+     *
+     * @return Risultato atteso
+     *
+     * @throws E eccezione che innesca (possibilmente) una successiva esecuzione.
+     */
+    public <R, E extends Throwable> R execute(RetryLane lane, RetryCallback<R, E> metodo)
+            throws E {
+        return forLane(lane).execute(metodo);
+    }
+
 }
@@ -14,7 +14,12 @@
 package it.eng.parer.retry;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.springframework.retry.RetryPolicy;
 import org.springframework.retry.backoff.BackOffPolicy;
 import org.springframework.retry.backoff.FixedBackOffPolicy;
@@ -33,11 +38,49 @@ public class ParerRetryConfigurationBuilder {
 
     public static final int DEFAULT_MAX_RETRY = 10;
 
+    /**
+     * Periodo di quarantena predefinito (10 minuti) degli endpoint che falliscono in modo
+     * permanente.
+     */
+    public static final long DEFAULT_QUARANTINE_PERIOD = 600_000L;
+
+    /**
+     * Periodo predefinito (10 minuti) dopo cui un endpoint che ha rifiutato una codifica del corpo
+     * torna a ricevere la codifica preferita.
+     */
+    public static final long DEFAULT_ENCODING_RETRY_PERIOD = 600_000L;
+
+    // parametri relativi all'interceptor, non configurabili per le singole lane
+    private static final List<String> INTERCEPTOR_PARAMETERS = Arrays.asList("attemptTrace",
+            "maxInFlightPerEndpoint", "requestCompression", "requestCompressionThreshold",
+            "encodingRetryPeriod", "routingMode", "failbackDelay", "failbackFailureThreshold",
+            "exceptionClassification", "exceptionClassifier", "quarantinePeriod", "idempotencyKey",
+            "nonIdempotentRetryAfterSend", "virtualThreadFriendly");
+
     private BackOffPolicy backOffPolicy;
     private long cbOpenTimeout;
     private long cbResetTimeout;
     private final List<RetryPolicy> policies = new ArrayList<>();
     private boolean optimisticCompositePolicy = true;
+    private int attemptTraceCapacity;
+    private RetryBudget retryBudget;
+    private int maxInFlightPerEndpoint;
+    private double inFlightShare = 1.0d;
+    private int compressionThreshold;
+    private final List<RequestBodyEncoder> requestEncoders = new ArrayList<>();
+    private long encodingRetryPeriod = DEFAULT_ENCODING_RETRY_PERIOD;
+    private RoutingMode routingMode = RoutingMode.ROUND_ROBIN;
+    private long failbackDelay;
+    private int failbackFailureThreshold = 1;
+    private final Map<Class<? extends Throwable>, Boolean> exceptionClassification = new HashMap<>();
+    private ParerExceptionClassifier exceptionClassifier;
+    private long quarantinePeriod = DEFAULT_QUARANTINE_PERIOD;
+    private boolean virtualThreadFriendly;
+    private boolean idempotencyKey = true;
+    private boolean nonIdempotentRetryAfterSend;
+    private final Map<RetryLane, ParerRetryConfigurationBuilder> lanes = new EnumMap<>(
+            RetryLane.class);
+    private final Map<String, String> parametri = new LinkedHashMap<>();
 
     /**
      * Aggiunge una {@link TimeoutRetryPolicy}. Il valore del timeout è espresso in ms.
@@ -50,6 +93,7 @@ public class ParerRetryConfigurationBuilder {
         TimeoutRetryPolicy policy = new TimeoutRetryPolicy();
         policy.setTimeout(timeout);
         this.policies.add(policy);
+        this.parametri.put("timeout", String.valueOf(timeout));
 
         return this;
     }
@@ -65,6 +109,7 @@ public class ParerRetryConfigurationBuilder {
         SimpleRetryPolicy policy = new SimpleRetryPolicy();
         policy.setMaxAttempts(maxAttemps);
         this.policies.add(policy);
+        this.parametri.put("maxAttemps", String.valueOf(maxAttemps));
         return this;
     }
 
@@ -79,6 +124,7 @@ public class ParerRetryConfigurationBuilder {
         FixedBackOffPolicy policy = new FixedBackOffPolicy();
         policy.setBackOffPeriod(backOffPeriod);
         this.backOffPolicy = policy;
+        this.parametri.put("backOffPeriod", String.valueOf(backOffPeriod));
         return this;
     }
 
@@ -93,6 +139,8 @@ public class ParerRetryConfigurationBuilder {
     public ParerRetryConfigurationBuilder withCircuitBreaker(long openTimeout, long resetTimeout) {
         this.cbOpenTimeout = openTimeout;
         this.cbResetTimeout = resetTimeout;
+        this.parametri.put("circuitBreakerOpenTimeout", String.valueOf(openTimeout));
+        this.parametri.put("circuitBreakerResetTimeout", String.valueOf(resetTimeout));
         return this;
     }
 
@@ -106,6 +154,319 @@ public class ParerRetryConfigurationBuilder {
      */
     public ParerRetryConfigurationBuilder withOptimisticCompositePolicy(boolean compositePolicy) {
         this.optimisticCompositePolicy = compositePolicy;
+        this.parametri.put("optimisticCompositePolicy", String.valueOf(compositePolicy));
+        return this;
+    }
+
+    /**
+     * Abilita la traccia dei tentativi effettuati da {@link RestRetryInterceptor}, consultabile via
+     * JMX (vedi {@link RestRetryMonitorMXBean}). La traccia è un buffer circolare preallocato: la
+     * registrazione dei tentativi non alloca oggetti.
+     *
+     * @param capacity numero di tentativi conservati (arrotondato alla potenza di due successiva)
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withAttemptTrace(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("La capacità della traccia deve essere positiva");
+        }
+        this.attemptTraceCapacity = capacity;
+        this.parametri.put("attemptTrace", String.valueOf(capacity));
+        return this;
+    }
+
+    /**
+     * Limita i retry ad una frazione del traffico tramite un {@link RetryBudget}: ogni richiesta
+     * accantona <code>ratio</code> retry, fino ad un massimo di <code>maxRetries</code>.
+     *
+     * @param ratio      retry accantonati per ogni richiesta
+     * @param maxRetries numero massimo di retry accumulabili
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withRetryBudget(double ratio, int maxRetries) {
+        this.retryBudget = new RetryBudget(ratio, maxRetries);
+        this.parametri.put("retryBudgetRatio", String.valueOf(ratio));
+        this.parametri.put("retryBudgetMaxRetries", String.valueOf(maxRetries));
+        return this;
+    }
+
+    /**
+     * Numero massimo di chiamate contemporanee verso ciascun endpoint, complessivo per tutte le
+     * lane; ciascuna lane può inoltre occuparne al più la propria quota (vedi
+     * {@link #withInFlightShare(double)}). Una chiamata resta in corso fino alla chiusura della
+     * risposta (RestTemplate la chiude dopo averne letto il corpo). Il valore predefinito (0) non
+     * impone limiti.
+     *
+     * @param maxInFlight numero massimo di chiamate contemporanee per endpoint
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withMaxInFlightPerEndpoint(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("Il numero di chiamate contemporanee non è valido");
+        }
+        this.maxInFlightPerEndpoint = maxInFlight;
+        this.parametri.put("maxInFlightPerEndpoint", String.valueOf(maxInFlight));
+        return this;
+    }
+
+    /**
+     * Quota delle chiamate contemporanee per endpoint (vedi
+     * {@link #withMaxInFlightPerEndpoint(int)}) utilizzabile dalla configurazione. Ha senso per le
+     * configurazioni delle lane (vedi {@link #withLane(RetryLane, ParerRetryConfigurationBuilder)}).
+     *
+     * @param share quota compresa tra 0 (escluso) e 1
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withInFlightShare(double share) {
+        if (share <= 0 || share > 1) {
+            throw new IllegalArgumentException("La quota deve essere compresa tra 0 e 1");
+        }
+        this.inFlightShare = share;
+        this.parametri.put("inFlightShare", String.valueOf(share));
+        return this;
+    }
+
+    /**
+     * Configurazione specifica per una lane di priorità. Le richieste della lane utilizzano
+     * tentativi, timeout, backoff, circuit breaker, budget di retry e quota in-flight della
+     * configurazione indicata; le richieste senza lane, o di una lane non configurata, utilizzano
+     * la configurazione principale.
+     *
+     * Le altre impostazioni (traccia, limite in-flight, compressione, routing, classificazione
+     * delle eccezioni, quarantena, idempotenza, modalità virtual thread) sono ereditate dalla
+     * configurazione principale: se impostate sul builder della lane, {@link #build()} solleva
+     * {@link IllegalArgumentException}. La configurazione della lane viene creata da
+     * {@link #build()}.
+     *
+     * @param lane        lane di priorità
+     * @param laneBuilder builder della configurazione della lane
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withLane(RetryLane lane,
+            ParerRetryConfigurationBuilder laneBuilder) {
+        this.lanes.put(lane, laneBuilder);
+        return this;
+    }
+
+    /**
+     * Abilita la compressione <code>gzip</code> del corpo delle richieste di dimensione almeno
+     * pari alla soglia indicata.
+     *
+     * @param threshold dimensione minima (in byte) del corpo da comprimere
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withRequestCompression(int threshold) {
+        return withRequestCompression(threshold, new GzipRequestBodyEncoder());
+    }
+
+    /**
+     * Abilita la compressione del corpo delle richieste di dimensione almeno pari alla soglia
+     * indicata. Il corpo viene codificato una sola volta per richiesta e riutilizzato per tutti i
+     * tentativi. Le codifiche sono indicate in ordine di preferenza: se un endpoint risponde
+     * <code>415 Unsupported Media Type</code> ad una richiesta codificata, per quell'endpoint si
+     * passa alla codifica successiva e, esaurite le codifiche, al corpo non compresso; trascorso il
+     * periodo indicato da {@link #withEncodingRetryPeriod(long)} si riprova la codifica preferita.
+     *
+     * @param threshold dimensione minima (in byte) del corpo da comprimere
+     * @param encoders  codifiche in ordine di preferenza
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withRequestCompression(int threshold,
+            RequestBodyEncoder... encoders) {
+        if (threshold < 0 || encoders.length == 0) {
+            throw new IllegalArgumentException("Parametri di compressione non validi");
+        }
+        this.compressionThreshold = threshold;
+        this.requestEncoders.clear();
+        this.requestEncoders.addAll(Arrays.asList(encoders));
+        StringBuilder names = new StringBuilder();
+        for (RequestBodyEncoder encoder : encoders) {
+            names.append(names.length() > 0 ? "," : "").append(encoder.getContentEncoding());
+        }
+        this.parametri.put("requestCompression", names.toString());
+        this.parametri.put("requestCompressionThreshold", String.valueOf(threshold));
+        return this;
+    }
+
+    /**
+     * Periodo dopo cui un endpoint che ha risposto <code>415 Unsupported Media Type</code> ad una
+     * richiesta codificata torna a ricevere la codifica preferita (vedi
+     * {@link #withRequestCompression(int, RequestBodyEncoder...)}). Il valore predefinito è
+     * {@link #DEFAULT_ENCODING_RETRY_PERIOD}.
+     *
+     * @param period periodo in ms
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withEncodingRetryPeriod(long period) {
+        if (period < 0) {
+            throw new IllegalArgumentException("Il periodo non è valido");
+        }
+        this.encodingRetryPeriod = period;
+        this.parametri.put("encodingRetryPeriod", String.valueOf(period));
+        return this;
+    }
+
+    /**
+     * Imposta la modalità {@link RoutingMode#PREFERRED_AFFINITY}: le richieste vengono inviate
+     * all'endpoint preferito e, in caso di errore, agli endpoint alternativi in ordine di priorità.
+     * Un endpoint che fallisce resta escluso per almeno <code>failbackDelay</code> ms; trascorso
+     * tale periodo riceve una richiesta di prova e, se questa ha successo, torna a ricevere il
+     * traffico.
+     *
+     * @param failbackDelay periodo minimo di esclusione in ms
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withPreferredEndpointAffinity(long failbackDelay) {
+        return withPreferredEndpointAffinity(failbackDelay, 1);
+    }
+
+    /**
+     * Come {@link #withPreferredEndpointAffinity(long)}, escludendo un endpoint solo dopo
+     * <code>failureThreshold</code> fallimenti consecutivi.
+     *
+     * @param failbackDelay    periodo minimo di esclusione in ms
+     * @param failureThreshold numero di fallimenti consecutivi che determinano l'esclusione
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withPreferredEndpointAffinity(long failbackDelay,
+            int failureThreshold) {
+        if (failbackDelay < 0 || failureThreshold < 1) {
+            throw new IllegalArgumentException("Parametri di failback non validi");
+        }
+        this.routingMode = RoutingMode.PREFERRED_AFFINITY;
+        this.failbackDelay = failbackDelay;
+        this.failbackFailureThreshold = failureThreshold;
+        this.parametri.put("routingMode", routingMode.name());
+        this.parametri.put("failbackDelay", String.valueOf(failbackDelay));
+        this.parametri.put("failbackFailureThreshold", String.valueOf(failureThreshold));
+        return this;
+    }
+
+    /**
+     * Eccezioni da considerare permanenti (oltre a quelle predefinite di
+     * {@link ParerExceptionClassifier}): non danno luogo a nuovi tentativi sullo stesso endpoint.
+     *
+     * @param types tipi di eccezione
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    @SafeVarargs
+    public final ParerRetryConfigurationBuilder withPermanentExceptions(
+            Class<? extends Throwable>... types) {
+        for (Class<? extends Throwable> type : types) {
+            this.exceptionClassification.put(type, Boolean.FALSE);
+        }
+        this.parametri.put("exceptionClassification", this.exceptionClassification.toString());
+        return this;
+    }
+
+    /**
+     * Eccezioni da considerare transitorie, anche se sottoclassi di eccezioni permanenti.
+     *
+     * @param types tipi di eccezione
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    @SafeVarargs
+    public final ParerRetryConfigurationBuilder withTransientExceptions(
+            Class<? extends Throwable>... types) {
+        for (Class<? extends Throwable> type : types) {
+            this.exceptionClassification.put(type, Boolean.TRUE);
+        }
+        this.parametri.put("exceptionClassification", this.exceptionClassification.toString());
+        return this;
+    }
+
+    /**
+     * Imposta il classificatore delle eccezioni in transitorie e permanenti. Se impostato,
+     * {@link #withPermanentExceptions(Class...)} e {@link #withTransientExceptions(Class...)} non
+     * vengono considerati.
+     *
+     * @param classifier classificatore delle eccezioni
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withExceptionClassifier(
+            ParerExceptionClassifier classifier) {
+        this.exceptionClassifier = classifier;
+        this.parametri.put("exceptionClassifier", classifier.getClass().getName());
+        return this;
+    }
+
+    /**
+     * Periodo di quarantena degli endpoint che falliscono in modo permanente: durante la
+     * quarantena l'endpoint viene utilizzato solo se tutti gli altri sono in quarantena. Il valore
+     * predefinito è {@link #DEFAULT_QUARANTINE_PERIOD}; 0 disabilita la quarantena.
+     *
+     * @param period periodo di quarantena in ms
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withEndpointQuarantine(long period) {
+        if (period < 0) {
+            throw new IllegalArgumentException("Il periodo di quarantena non è valido");
+        }
+        this.quarantinePeriod = period;
+        this.parametri.put("quarantinePeriod", String.valueOf(period));
+        return this;
+    }
+
+    /**
+     * Indica se aggiungere alle richieste non idempotenti (POST, PATCH) l'header
+     * {@link RestRetryInterceptor#IDEMPOTENCY_KEY_HEADER}, con un valore univoco per richiesta e
+     * uguale per tutti i tentativi, così che il server possa riconoscere i duplicati. Il valore
+     * predefinito è <em>true</em>; l'header non viene sovrascritto se già presente.
+     *
+     * @param enabled true per aggiungere l'header
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withIdempotencyKey(boolean enabled) {
+        this.idempotencyKey = enabled;
+        this.parametri.put("idempotencyKey", String.valueOf(enabled));
+        return this;
+    }
+
+    /**
+     * Indica se ripetere le richieste non idempotenti (POST, PATCH) anche quando l'errore si è
+     * verificato dopo l'invio della richiesta (es. timeout in lettura, risposta con codice non
+     * gestito diverso da 503 e 429), cioè quando il server potrebbe averla già elaborata. Gli
+     * errori precedenti all'invio (es. connessione rifiutata) danno sempre luogo a nuovi
+     * tentativi. Il valore predefinito è <em>false</em>.
+     *
+     * @param enabled true per ripetere le richieste non idempotenti dopo l'invio
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withNonIdempotentRetryAfterSend(boolean enabled) {
+        this.nonIdempotentRetryAfterSend = enabled;
+        this.parametri.put("nonIdempotentRetryAfterSend", String.valueOf(enabled));
+        return this;
+    }
+
+    /**
+     * Modalità adatta ai virtual thread: l'attesa del backoff avviene tramite
+     * {@link ParkingSleeper} anziché tramite {@link Thread#sleep(long)}. Su JDK 21+ il
+     * comportamento è equivalente a quello predefinito, che già libera il carrier thread; la
+     * modalità rende l'attesa indipendente dall'implementazione di {@link Thread#sleep(long)} del
+     * JDK in uso. Vale anche per le lane (vedi
+     * {@link #withLane(RetryLane, ParerRetryConfigurationBuilder)}).
+     *
+     * @return {@link ParerRetryConfigurationBuilder}
+     */
+    public ParerRetryConfigurationBuilder withVirtualThreadFriendlyMode() {
+        this.virtualThreadFriendly = true;
+        this.parametri.put("virtualThreadFriendly", String.valueOf(true));
         return this;
     }
 
@@ -115,11 +476,43 @@ public class ParerRetryConfigurationBuilder {
      * @return {@link ParerRetryConfiguration}
      */
     public ParerRetryConfiguration build() {
+        ParerExceptionClassifier classifier = this.exceptionClassifier != null
+                ? this.exceptionClassifier
+                : new ParerExceptionClassifier(this.exceptionClassification);
+        return build(this, classifier);
+    }
+
+    /**
+     * Costruisce la configurazione; le impostazioni dell'interceptor sono lette da
+     * <code>owner</code>, che per le lane è il builder della configurazione principale.
+     *
+     * @param owner      builder da cui ereditare le impostazioni dell'interceptor
+     * @param classifier classificatore delle eccezioni della configurazione principale
+     *
+     * @return {@link ParerRetryConfiguration}
+     */
+    private ParerRetryConfiguration build(ParerRetryConfigurationBuilder owner,
+            ParerExceptionClassifier classifier) {
+        if (owner != this) {
+            for (String parametro : this.parametri.keySet()) {
+                if (INTERCEPTOR_PARAMETERS.contains(parametro)) {
+                    throw new IllegalArgumentException("Il parametro " + parametro
+                            + " non è configurabile per la lane: viene ereditato dalla "
+                            + "configurazione principale");
+                }
+            }
+            if (!this.lanes.isEmpty()) {
+                throw new IllegalArgumentException("Una lane non può avere lane proprie");
+            }
+        }
 
         ParerRetryConfiguration restClient = new ParerRetryConfiguration();
         RetryTemplate retryTemplate = new RetryTemplate();
 
         if (this.backOffPolicy != null) {
+            if (owner.virtualThreadFriendly && this.backOffPolicy instanceof FixedBackOffPolicy) {
+                ((FixedBackOffPolicy) this.backOffPolicy).setSleeper(new ParkingSleeper());
+            }
             retryTemplate.setBackOffPolicy(this.backOffPolicy);
         }
 
@@ -133,6 +526,12 @@ public class ParerRetryConfigurationBuilder {
             policy = compositePolicy;
         }
 
+        policy = new FailFastRetryPolicy(policy, classifier);
+
+        if (retryBudget != null) {
+            policy = new RetryBudgetPolicy(policy, retryBudget);
+        }
+
         if (cbOpenTimeout > 0 && cbResetTimeout > 0) {
             CircuitBreakerRetryPolicy circuitBreakerPolicy = new CircuitBreakerRetryPolicy(policy);
             circuitBreakerPolicy.setOpenTimeout(cbOpenTimeout);
@@ -141,7 +540,29 @@ public class ParerRetryConfigurationBuilder {
         }
         retryTemplate.setRetryPolicy(policy);
 
+        Map<RetryLane, ParerRetryConfiguration> laneConfigurations = new EnumMap<>(
+                RetryLane.class);
+        Map<String, String> allParametri = new LinkedHashMap<>(this.parametri);
+        for (Map.Entry<RetryLane, ParerRetryConfigurationBuilder> lane : this.lanes.entrySet()) {
+            ParerRetryConfiguration laneConfiguration = lane.getValue().build(owner,
+                    classifier);
+            laneConfigurations.put(lane.getKey(), laneConfiguration);
+            laneConfiguration.getParametri().forEach(
+                    (k, v) -> allParametri.put("lane." + lane.getKey() + "." + k, v));
+        }
+
         restClient.setRetryTemplate(retryTemplate);
+        restClient.setAttemptTraceCapacity(owner.attemptTraceCapacity);
+        restClient.setMaxInFlightPerEndpoint(owner.maxInFlightPerEndpoint);
+        restClient.setInFlightShare(this.inFlightShare);
+        restClient.setLanes(laneConfigurations);
+        restClient.setRouting(owner.routingMode, owner.failbackDelay,
+                owner.failbackFailureThreshold);
+        restClient.setExceptionClassifier(classifier, owner.quarantinePeriod);
+        restClient.setIdempotency(owner.idempotencyKey, owner.nonIdempotentRetryAfterSend);
+        restClient.setRequestCompression(owner.compressionThreshold, owner.requestEncoders,
+                owner.encodingRetryPeriod);
+        restClient.setParametri(allParametri);
 
         return restClient;
     }
@@ -0,0 +1,46 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.retry.backoff.Sleeper;
+
+/**
+ * {@link Sleeper} basato su {@link LockSupport#parkNanos(Object, long)}: non utilizza monitor
+ * (<code>synchronized</code>/<code>Object.wait</code>), per cui un virtual thread in attesa del
+ * backoff libera il carrier thread. Su JDK 21+ il comportamento è equivalente a quello dello
+ * sleeper predefinito di spring-retry, basato su {@link Thread#sleep(long)}; a differenza di
+ * quest'ultimo l'attesa non dipende dall'implementazione di {@link Thread#sleep(long)} del JDK in
+ * uso.
+ *
+ * @author Snidero_L
+ */
+public class ParkingSleeper implements Sleeper {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void sleep(long backOffPeriod) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backOffPeriod);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Backoff interrotto");
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.io.IOException;
+
+/**
+ * Codifica (compressione) del corpo delle richieste inviate da {@link RestRetryInterceptor}.
+ *
+ * @author Snidero_L
+ */
+public interface RequestBodyEncoder {
+
+    /**
+     * Valore dell'header <code>Content-Encoding</code> corrispondente alla codifica (es.
+     * <code>gzip</code>, <code>zstd</code>).
+     *
+     * @return nome della codifica
+     */
+    String getContentEncoding();
+
+    /**
+     * Codifica il corpo della richiesta.
+     *
+     * @param body corpo della richiesta
+     *
+     * @return corpo codificato
+     *
+     * @throws IOException in caso di errore di codifica
+     */
+    byte[] encode(byte[] body) throws IOException;
+}
@@ -13,8 +13,12 @@
 
 package it.eng.parer.retry;
 
+import java.net.URI;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.springframework.http.client.ClientHttpRequestFactory;
 
 /**
  * Interfaccia per configurare i servizi Rest con meccanismo di retry.
@@ -82,10 +86,39 @@ public interface RestConfiguratorHelper {
         if (isCompositePolicyOptimisticParam() != null) {
             retryBuilder.withOptimisticCompositePolicy(isCompositePolicyOptimisticParam());
         }
+        if (getFailbackDelayParam() != null) {
+            retryBuilder.withPreferredEndpointAffinity(getFailbackDelayParam());
+        }
 
         return retryBuilder.build();
     }
 
+    /**
+     * Costruisce l'interceptor per RestTemplate a partire da {@link #preferredEndpoint()},
+     * {@link #endPoints()} e {@link #retryClient()}. Ogni invocazione crea un nuovo interceptor,
+     * con il proprio stato degli endpoint: va quindi creato una volta e riutilizzato.
+     *
+     * @return interceptor configurato
+     */
+    default RestRetryInterceptor retryInterceptor() {
+        List<URI> endpoints = endPoints().stream().map(URI::create).collect(Collectors.toList());
+        URI preferred = preferredEndpoint() != null ? URI.create(preferredEndpoint()) : null;
+        return new RestRetryInterceptor(preferred, endpoints, retryClient());
+    }
+
+    /**
+     * Factory delle richieste HTTP basata su {@link java.net.http.HttpClient} con HTTP/2: le
+     * chiamate contemporanee verso lo stesso endpoint condividono poche connessioni. I timeout di
+     * connessione e di attesa della risposta sono pari a {@link #clientTimeout()} (vedi
+     * {@link JdkClientHttpRequestFactory} per i limiti del timeout). Ogni invocazione crea un
+     * nuovo client, la factory va quindi creata una volta e riutilizzata.
+     *
+     * @return factory delle richieste
+     */
+    default ClientHttpRequestFactory clientHttpRequestFactory() {
+        return new JdkClientHttpRequestFactory(clientTimeout());
+    }
+
     /**
      * Parametro di configurazione relativo al timeout per il meccanismo di retry.
      *
@@ -149,6 +182,19 @@ public interface RestConfiguratorHelper {
      */
     Long getClientTimeoutInMinutesParam();
 
+    /**
+     * Periodo minimo (in ms) per cui un endpoint fallito viene escluso prima di tornare, in caso di
+     * successo, a ricevere il traffico. Se valorizzato abilita la modalità
+     * {@link RoutingMode#PREFERRED_AFFINITY}: le chiamate vengono inviate a
+     * {@link #preferredEndpoint()} e, in caso di errore, agli altri endpoint in ordine. Il
+     * parametro è opzionale.
+     *
+     * @return periodo in ms oppure null
+     */
+    default Long getFailbackDelayParam() {
+        return null;
+    }
+
     /**
      * Endpoint principale su cui effettuare le chiamate
      *
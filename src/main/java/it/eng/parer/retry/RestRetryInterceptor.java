@@ -14,14 +14,29 @@
 package it.eng.parer.retry;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLHandshakeException;
+
+import org.apache.http.conn.ConnectTimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.client.ClientHttpRequestExecution;
@@ -43,24 +58,227 @@ public class RestRetryInterceptor implements ClientHttpRequestInterceptor {
 
     private final Logger log = LoggerFactory.getLogger(RestRetryInterceptor.class);
 
+    // i response code "gestiti" dall'enpoint sono 200, 400, 404, 417, 500
+    private static final List<HttpStatus> HANDLED_STATUS = Arrays.asList(HttpStatus.OK,
+            HttpStatus.INTERNAL_SERVER_ERROR, HttpStatus.BAD_REQUEST, HttpStatus.EXPECTATION_FAILED,
+            HttpStatus.NOT_FOUND);
+
+    // errori che si verificano prima dell'invio della richiesta
+    private static final List<Class<? extends IOException>> NOT_SENT_EXCEPTIONS = Arrays.asList(
+            ConnectException.class, NoRouteToHostException.class, UnknownHostException.class,
+            ConnectTimeoutException.class, HttpConnectTimeoutException.class,
+            SSLHandshakeException.class);
+
+    /**
+     * Header con cui viene identificata una richiesta non idempotente, uguale per tutti i
+     * tentativi.
+     */
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
     private final AtomicInteger indice = new AtomicInteger(0);
 
     private final List<URI> additionalEndpoints;
     private final ParerRetryConfiguration retryClient;
+    private final RestRetryMonitor monitor;
+    private final ConcurrentMap<String, EndpointState> endpointStates = new ConcurrentHashMap<>();
+
+    // endpoint in ordine di priorità (preferito in testa), per RoutingMode.PREFERRED_AFFINITY
+    private final List<URI> priorityEndpoints;
+    private final EndpointState[] priorityStates;
+    private final boolean affinity;
+    private final long failbackDelayNanos;
+    private final ParerExceptionClassifier classifier;
+    private final long quarantineNanos;
+    private final long encodingRetryNanos;
 
     public RestRetryInterceptor(List<URI> additionalEndpoints,
             ParerRetryConfiguration retryClient) {
+        this(null, additionalEndpoints, retryClient);
+    }
+
+    /**
+     * Interceptor con endpoint preferito. L'endpoint preferito viene utilizzato con la modalità
+     * {@link RoutingMode#PREFERRED_AFFINITY} (vedi
+     * {@link ParerRetryConfigurationBuilder#withPreferredEndpointAffinity(long)}).
+     *
+     * @param preferredEndpoint   endpoint preferito; se null è il primo degli endpoint alternativi
+     * @param additionalEndpoints endpoint alternativi, in ordine di priorità
+     * @param retryClient         configurazione del retry
+     *
+     * @throws IllegalArgumentException se uno degli endpoint non è un URI http(s) assoluto
+     */
+    public RestRetryInterceptor(URI preferredEndpoint, List<URI> additionalEndpoints,
+            ParerRetryConfiguration retryClient) {
+        if (preferredEndpoint != null) {
+            validateEndpoint(preferredEndpoint);
+        }
+        additionalEndpoints.forEach(RestRetryInterceptor::validateEndpoint);
         this.additionalEndpoints = additionalEndpoints;
         this.retryClient = retryClient;
+
+        this.priorityEndpoints = new ArrayList<>(additionalEndpoints.size() + 1);
+        if (preferredEndpoint != null) {
+            this.priorityEndpoints.add(preferredEndpoint);
+        }
+        for (URI endpoint : additionalEndpoints) {
+            if (!this.priorityEndpoints.contains(endpoint)) {
+                this.priorityEndpoints.add(endpoint);
+            }
+        }
+        this.priorityStates = new EndpointState[priorityEndpoints.size()];
+        for (int i = 0; i < priorityStates.length; i++) {
+            priorityStates[i] = endpointState(priorityEndpoints.get(i));
+        }
+        this.affinity = retryClient.getRoutingMode() == RoutingMode.PREFERRED_AFFINITY
+                && !priorityEndpoints.isEmpty();
+        this.failbackDelayNanos = TimeUnit.MILLISECONDS.toNanos(retryClient.getFailbackDelay());
+        this.classifier = retryClient.getExceptionClassifier();
+        this.quarantineNanos = TimeUnit.MILLISECONDS.toNanos(retryClient.getQuarantinePeriod());
+        this.encodingRetryNanos = TimeUnit.MILLISECONDS
+                .toNanos(retryClient.getEncodingRetryPeriod());
+
+        this.monitor = new RestRetryMonitor(priorityEndpoints, retryClient);
+    }
+
+    private static void validateEndpoint(URI endpoint) {
+        String scheme = endpoint.getScheme();
+        // getHost() è null per i nomi host con underscore (es. http://parer_crypto:8080/)
+        if (!endpoint.isAbsolute() || endpoint.getAuthority() == null
+                || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+            throw new IllegalArgumentException("Endpoint non valido: " + endpoint);
+        }
+    }
+
+    /**
+     * Contatori e traccia dei tentativi dell'interceptor. Per esporli via JMX utilizzare
+     * {@link RestRetryMonitor#register(String)}.
+     *
+     * @return monitor dell'interceptor
+     */
+    public RestRetryMonitor getMonitor() {
+        return monitor;
     }
 
     @Override
     public ClientHttpResponse intercept(HttpRequest hr, byte[] bytes,
             ClientHttpRequestExecution chre) throws IOException {
 
-        SpringCallBack callback = new SpringCallBack(hr, bytes, chre);
+        RetryLane lane = RetryLane.resolve(hr.getHeaders());
+        ParerRetryConfiguration laneClient = retryClient.forLane(lane);
+
+        SpringCallBack callback = new SpringCallBack(hr, bytes, chre, monitor.onRequest(), lane,
+                inFlightLimit(laneClient));
+
+        try {
+            return laneClient.execute(callback);
+        } catch (RuntimeException e) {
+            monitor.onRequestFailed();
+            throw e;
+        }
+    }
+
+    /**
+     * Numero massimo di chiamate contemporanee per endpoint consentite alla lane.
+     *
+     * @param laneClient configurazione della lane
+     *
+     * @return limite oppure 0 se non è previsto alcun limite
+     */
+    private int inFlightLimit(ParerRetryConfiguration laneClient) {
+        int max = retryClient.getMaxInFlightPerEndpoint();
+        if (max <= 0) {
+            return 0;
+        }
+        return Math.max(1, (int) (max * laneClient.getInFlightShare()));
+    }
+
+    private boolean isQuarantined(URI uri) {
+        return quarantineNanos > 0 && endpointState(uri).isQuarantined(System.nanoTime(),
+                quarantineNanos);
+    }
+
+    /**
+     * Indica se esiste un endpoint, diverso da quello indicato, non in quarantena.
+     *
+     * @param failed endpoint fallito
+     *
+     * @return true se esiste un endpoint alternativo disponibile
+     */
+    private boolean hasAlternativeEndpoint(EndpointState failed) {
+        final long now = System.nanoTime();
+        for (EndpointState state : priorityStates) {
+            if (state != failed && !state.isQuarantined(now, quarantineNanos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gestisce l'eccezione di un tentativo: se permanente l'endpoint viene messo in quarantena (se
+     * abilitata) e, se esistono altri endpoint disponibili, si passa al successivo; altrimenti
+     * l'eccezione interrompe i tentativi (vedi {@link FailFastRetryPolicy}).
+     *
+     * @param endpoint URI invocato
+     * @param e        eccezione del tentativo
+     *
+     * @return eccezione da sollevare
+     */
+    private RuntimeException onAttemptFailure(URI endpoint, RuntimeException e) {
+        if (!classifier.isPermanent(e)) {
+            return e;
+        }
+        EndpointState state = endpointState(endpoint);
+        if (quarantineNanos > 0) {
+            state.quarantine(System.nanoTime());
+            log.warn("Errore permanente invocando endpoint {}, endpoint in quarantena: {}",
+                    endpoint, e.getMessage());
+        }
+        if (hasAlternativeEndpoint(state)) {
+            return new EndpointFailoverException(
+                    "Errore permanente invocando endpoint " + endpoint + ", passo al successivo",
+                    e);
+        }
+        return e;
+    }
+
+    /**
+     * Indica se l'errore si è verificato prima dell'invio della richiesta, cioè se il server non
+     * può averla ricevuta.
+     *
+     * @param e eccezione del tentativo
+     *
+     * @return true se la richiesta non è stata inviata
+     */
+    private static boolean isNotSent(IOException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            for (Class<? extends IOException> type : NOT_SENT_EXCEPTIONS) {
+                if (type.isInstance(t)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        return retryClient.execute(callback);
+    /**
+     * Indica se la risposta garantisce che la richiesta non sia stata elaborata (503 e 429).
+     *
+     * @param statusCode status code della risposta
+     *
+     * @return true se la richiesta non è stata elaborata
+     */
+    private static boolean isNotProcessed(int statusCode) {
+        return statusCode == HttpStatus.SERVICE_UNAVAILABLE.value()
+                || statusCode == HttpStatus.TOO_MANY_REQUESTS.value();
+    }
+
+    private EndpointState endpointState(URI uri) {
+        String key = uri.getAuthority() != null ? uri.getScheme() + "://" + uri.getAuthority()
+                : uri.toString();
+        // lettura senza lock nel caso frequente di endpoint già noto
+        EndpointState state = endpointStates.get(key);
+        return state != null ? state : endpointStates.computeIfAbsent(key, k -> new EndpointState());
     }
 
     private class SpringCallBack implements RetryCallback<ClientHttpResponse, RestClientException> {
@@ -68,23 +286,135 @@ public class RestRetryInterceptor implements ClientHttpRequestInterceptor {
         private final HttpRequest hr;
         byte[] bytes;
         private final ClientHttpRequestExecution chre;
-
-        public SpringCallBack(HttpRequest hr, byte[] bytes, ClientHttpRequestExecution chre) {
+        private final long requestId;
+        private final RetryLane lane;
+        private final int inFlightLimit;
+        private final List<RequestBodyEncoder> encoders;
+        private final boolean compress;
+        private final boolean nonIdempotent;
+        private final HttpHeaders headers;
+        private EncodedBody[] encodedBodies;
+        private int route = -1;
+        private boolean probe;
+        // l'endpoint ha rifiutato la codifica: il tentativo successivo va allo stesso endpoint
+        private boolean encodingRetry;
+        private long lastAttemptEnd;
+
+        public SpringCallBack(HttpRequest hr, byte[] bytes, ClientHttpRequestExecution chre,
+                long requestId, RetryLane lane, int inFlightLimit) {
             this.chre = chre;
             this.hr = hr;
             this.bytes = bytes;
+            this.requestId = requestId;
+            this.lane = lane;
+            this.inFlightLimit = inFlightLimit;
+            this.encoders = retryClient.getRequestEncoders();
+            this.compress = !encoders.isEmpty() && bytes.length > 0
+                    && bytes.length >= retryClient.getCompressionThreshold()
+                    && !hr.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING);
+            this.nonIdempotent = hr.getMethod() == HttpMethod.POST
+                    || hr.getMethod() == HttpMethod.PATCH;
+            boolean addIdempotencyKey = nonIdempotent && retryClient.isIdempotencyKey()
+                    && !hr.getHeaders().containsKey(IDEMPOTENCY_KEY_HEADER);
+            if (addIdempotencyKey || hr.getHeaders().containsKey(RetryLane.HEADER)) {
+                this.headers = new HttpHeaders();
+                this.headers.putAll(hr.getHeaders());
+                // la lane è utilizzata solo dall'interceptor, non viene inviata all'endpoint
+                this.headers.remove(RetryLane.HEADER);
+                if (addIdempotencyKey) {
+                    this.headers.set(IDEMPOTENCY_KEY_HEADER, UUID.randomUUID().toString());
+                }
+            } else {
+                this.headers = hr.getHeaders();
+            }
+        }
 
+        /**
+         * Un errore successivo all'invio di una richiesta non idempotente interrompe i tentativi,
+         * se non diversamente configurato: il server potrebbe averla già elaborata.
+         *
+         * @param context   contesto del retry
+         * @param endpoint  URI invocato
+         * @param processed true se la richiesta potrebbe essere stata elaborata
+         */
+        private void checkIdempotency(RetryContext context, URI endpoint, boolean processed) {
+            if (processed && nonIdempotent && !retryClient.isNonIdempotentRetryAfterSend()) {
+                log.debug("{} verso {} non ripetuta: la richiesta potrebbe essere stata elaborata",
+                        hr.getMethod(), endpoint);
+                context.setExhaustedOnly();
+            }
         }
 
-        private URI nextEndPoint(String uriPath) {
-            try {
-                if (indice.get() >= additionalEndpoints.size()) {
-                    indice.set(0);
+        /**
+         * Corpo codificato con la codifica indicata. La codifica viene calcolata una sola volta
+         * per richiesta e riutilizzata per tutti i tentativi.
+         *
+         * @param index indice della codifica
+         *
+         * @return corpo codificato oppure {@link EncodedBody#NONE} se non conveniente
+         */
+        private EncodedBody encodedBody(int index) {
+            if (encodedBodies == null) {
+                encodedBodies = new EncodedBody[encoders.size()];
+            }
+            EncodedBody encoded = encodedBodies[index];
+            if (encoded == null) {
+                RequestBodyEncoder encoder = encoders.get(index);
+                encoded = EncodedBody.NONE;
+                try {
+                    byte[] body = encoder.encode(bytes);
+                    if (body.length < bytes.length) {
+                        HttpHeaders encodedHeaders = new HttpHeaders();
+                        encodedHeaders.putAll(headers);
+                        encodedHeaders.set(HttpHeaders.CONTENT_ENCODING,
+                                encoder.getContentEncoding());
+                        encodedHeaders.setContentLength(body.length);
+                        encoded = new EncodedBody(body, encodedHeaders);
+                    }
+                } catch (IOException e) {
+                    log.warn("Impossibile applicare la codifica {}, invio il corpo non compresso",
+                            encoder.getContentEncoding(), e);
                 }
-                return URI.create(additionalEndpoints.get(indice.get()).toASCIIString() + uriPath);
-            } finally {
-                indice.addAndGet(1);
+                encodedBodies[index] = encoded;
+            }
+            return encoded;
+        }
+
+        /**
+         * Sceglie il primo endpoint disponibile in ordine di priorità a partire dalla posizione
+         * indicata e lo assegna a {@link #route}; {@link #probe} indica se il tentativo è la
+         * richiesta di prova dell'endpoint.
+         *
+         * @param from posizione in {@link #priorityEndpoints} da cui iniziare la ricerca
+         */
+        private void nextRoute(int from) {
+            final int n = priorityEndpoints.size();
+            final long now = System.nanoTime();
+            for (int k = 0; k < n; k++) {
+                int i = (from + k) % n;
+                if (priorityStates[i].isQuarantined(now, quarantineNanos)) {
+                    continue;
+                }
+                EndpointState.Route result = priorityStates[i].tryRoute(now, failbackDelayNanos);
+                if (result != EndpointState.Route.REFUSED) {
+                    route = i;
+                    probe = result == EndpointState.Route.PROBE;
+                    return;
+                }
+            }
+            // tutti gli endpoint sono esclusi: si prosegue comunque in ordine di priorità
+            route = from % n;
+            probe = false;
+        }
+
+        private URI nextEndPoint(String uriPath) {
+            final int n = additionalEndpoints.size();
+            URI endpoint = additionalEndpoints.get(Math.floorMod(indice.getAndIncrement(), n));
+            // gli endpoint in quarantena vengono saltati, se ce ne sono altri
+            for (int k = 1; k < n && isQuarantined(endpoint); k++) {
+                endpoint = additionalEndpoints.get(Math.floorMod(indice.getAndIncrement(), n));
             }
+            return URI.create(endpoint.toASCIIString() + uriPath);
         }
 
         @Override
@@ -98,45 +428,202 @@ public class RestRetryInterceptor implements ClientHttpRequestInterceptor {
                 uriPath += "?" + currentURI.getQuery();
             }
 
-            if (context.getLastThrowable() != null) {
-                log.debug("Eccezione di tipo " + context.getLastThrowable().getClass(),
-                        context.getLastThrowable());
+            if (context.getLastThrowable() != null && log.isDebugEnabled()) {
+                log.debug("Eccezione di tipo {}: {}",
+                        context.getLastThrowable().getClass().getName(),
+                        context.getLastThrowable().getMessage());
+            }
 
+            if (affinity) {
+                // endpoint disponibile in ordine di priorità, dopo quello appena fallito
+                nextRoute(encodingRetry ? route : route + 1);
+                currentURI = URI.create(priorityEndpoints.get(route).toASCIIString() + uriPath);
+            } else if (context.getLastThrowable() != null
+                    || (!additionalEndpoints.isEmpty() && isQuarantined(currentURI))) {
                 // cycle URL
                 currentURI = nextEndPoint(uriPath);
-
             }
 
+            final long start = System.nanoTime();
+            final long backoff = context.getRetryCount() == 0 ? 0L : start - lastAttemptEnd;
+            int statusCode = RetryAttemptTrace.NO_STATUS;
+            Class<? extends Throwable> failure = null;
+            EndpointState acquired = null;
+            boolean sent = false;
+            boolean success = false;
+            boolean encodingRejected = false;
             try {
-                log.debug("{} # {} a  [{}]", hr.getMethod(), context.getRetryCount(), currentURI);
-
-                HttpRequest wrapper = new SpringHttpRequestWrapper(currentURI, hr);
-                ClientHttpResponse response = chre.execute(wrapper, bytes);
-                // i response code "gestiti" dall'enpoint sono 200, 400, 404, 417, 500
-                // qualunque altro codice che non rientra su questa lista scatena la retry
-                if (!Arrays.asList(HttpStatus.OK, HttpStatus.INTERNAL_SERVER_ERROR,
-                        HttpStatus.BAD_REQUEST, HttpStatus.EXPECTATION_FAILED, HttpStatus.NOT_FOUND)
-                        .contains(response.getStatusCode())) {
-                    throw new RestClientException(
-                            "Response code ottenuto " + response.getStatusCode()
-                                    + " invocando endpoint " + currentURI + " scateno retry....");
+                log.debug("{} richiesta {} # {} a  [{}]", hr.getMethod(), requestId,
+                        context.getRetryCount(), currentURI);
+
+                EndpointState state = inFlightLimit > 0 || compress ? endpointState(currentURI)
+                        : null;
+                if (inFlightLimit > 0) {
+                    if (!state.tryAcquire(lane, inFlightLimit,
+                            retryClient.getMaxInFlightPerEndpoint())) {
+                        // la richiesta non viene inviata: si attende il backoff della lane
+                        throw new RestClientException(
+                                "Raggiunto il numero massimo di chiamate contemporanee della lane "
+                                        + lane + " invocando endpoint " + currentURI);
+                    }
+                    acquired = state;
+                }
+
+                HttpRequest wrapper = new SpringHttpRequestWrapper(currentURI, hr, headers);
+                byte[] body = bytes;
+                int encoding = -1;
+                final int accepted = compress
+                        ? state.getEncoding(start, encodingRetryNanos)
+                        : encoders.size();
+                if (accepted < encoders.size()) {
+                    EncodedBody encoded = encodedBody(accepted);
+                    if (encoded != EncodedBody.NONE) {
+                        encoding = accepted;
+                        body = encoded.body;
+                        wrapper = new SpringHttpRequestWrapper(currentURI, hr, encoded.headers);
+                        monitor.onCompressedAttempt((long) bytes.length - body.length);
+                    }
                 }
-                return response;
+                sent = true;
+                ClientHttpResponse response = chre.execute(wrapper, body);
+                statusCode = response.getRawStatusCode();
+                if (encoding >= 0 && statusCode == HttpStatus.UNSUPPORTED_MEDIA_TYPE.value()) {
+                    // codifica non supportata dall'endpoint, i prossimi invii usano la successiva
+                    state.rejectEncoding(encoding, System.nanoTime());
+                    encodingRejected = true;
+                }
+                // qualunque codice che non rientra nella lista HANDLED_STATUS (compresi i codici non
+                // standard) scatena la retry
+                if (!HANDLED_STATUS.contains(HttpStatus.resolve(statusCode))) {
+                    response.close();
+                    throw new RestClientException("Response code ottenuto " + statusCode
+                            + " invocando endpoint " + currentURI + " scateno retry....");
+                }
+                success = true;
+                // lo slot in-flight viene liberato alla chiusura della risposta, dopo la lettura
+                // del corpo
+                return acquired != null ? new InFlightResponse(response, acquired, lane)
+                        : response;
             } catch (IOException e) {
-                throw new RestClientException("Impossibile raggiungere l'endpoint", e);
+                failure = e.getClass();
+                checkIdempotency(context, currentURI, sent && !isNotSent(e));
+                throw onAttemptFailure(currentURI,
+                        new RestClientException("Impossibile raggiungere l'endpoint", e));
+            } catch (RuntimeException e) {
+                failure = e.getClass();
+                // un corpo codificato rifiutato con 415 non è stato elaborato
+                checkIdempotency(context, currentURI, statusCode != RetryAttemptTrace.NO_STATUS
+                        && !isNotProcessed(statusCode) && !encodingRejected);
+                throw onAttemptFailure(currentURI, e);
+            } catch (Error e) {
+                failure = e.getClass();
+                throw e;
+            } finally {
+                if (acquired != null && !success) {
+                    acquired.release(lane);
+                }
+                lastAttemptEnd = System.nanoTime();
+                if (affinity) {
+                    // un rifiuto della codifica non indica lo stato dell'endpoint
+                    updateHealth(priorityStates[route], success, sent && !encodingRejected);
+                    encodingRetry = encodingRejected;
+                }
+                if (success && quarantineNanos > 0) {
+                    endpointState(currentURI).clearQuarantine();
+                }
+                monitor.onAttempt(requestId, context.getRetryCount() + 1, currentURI, statusCode,
+                        failure, lastAttemptEnd - start, backoff);
+            }
+        }
+
+        private void updateHealth(EndpointState health, boolean success, boolean sent) {
+            if (success) {
+                health.onSuccess(probe);
+            } else if (sent) {
+                health.onFailure(lastAttemptEnd, retryClient.getFailbackFailureThreshold(), probe);
+            } else if (probe) {
+                health.releaseProbe();
+            }
+        }
+
+    }
+
+    /**
+     * Risposta che libera lo slot in-flight dell'endpoint alla chiusura.
+     */
+    private static final class InFlightResponse implements ClientHttpResponse {
+
+        private final ClientHttpResponse response;
+        private final EndpointState state;
+        private final RetryLane lane;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        InFlightResponse(ClientHttpResponse response, EndpointState state, RetryLane lane) {
+            this.response = response;
+            this.state = state;
+            this.lane = lane;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return response.getBody();
+        }
+
+        @Override
+        public void close() {
+            try {
+                response.close();
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    state.release(lane);
+                }
             }
         }
+    }
+
+    private static final class EncodedBody {
 
+        static final EncodedBody NONE = new EncodedBody(null, null);
+
+        private final byte[] body;
+        private final HttpHeaders headers;
+
+        EncodedBody(byte[] body, HttpHeaders headers) {
+            this.body = body;
+            this.headers = headers;
+        }
     }
 
     private class SpringHttpRequestWrapper implements HttpRequest {
 
         private final URI newUri;
         private final HttpRequest hr;
+        private final HttpHeaders headers;
 
-        SpringHttpRequestWrapper(URI newUri, HttpRequest hr) {
+        SpringHttpRequestWrapper(URI newUri, HttpRequest hr, HttpHeaders headers) {
             this.newUri = newUri;
             this.hr = hr;
+            this.headers = headers;
         }
 
         @Override
@@ -146,7 +633,7 @@ public class RestRetryInterceptor implements ClientHttpRequestInterceptor {
 
         @Override
         public HttpHeaders getHeaders() {
-            return hr.getHeaders();
+            return headers;
         }
 
         @Override
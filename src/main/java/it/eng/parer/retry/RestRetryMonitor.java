@@ -0,0 +1,218 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Contatori e traccia dei tentativi di un {@link RestRetryInterceptor}. Esposto via JMX tramite
+ * {@link #register(String)}.
+ *
+ * @author Snidero_L
+ */
+public class RestRetryMonitor implements RestRetryMonitorMXBean {
+
+    private final List<URI> endpoints;
+    private final ParerRetryConfiguration retryClient;
+    private final RetryAttemptTrace trace;
+
+    private final AtomicLong requestSequence = new AtomicLong(0);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder failedAttempts = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder compressionSavedBytes = new LongAdder();
+
+    private ObjectName objectName;
+
+    RestRetryMonitor(List<URI> endpoints, ParerRetryConfiguration retryClient) {
+        this.endpoints = endpoints;
+        this.retryClient = retryClient;
+        int capacity = retryClient.getAttemptTraceCapacity();
+        this.trace = capacity > 0 ? new RetryAttemptTrace(capacity) : null;
+    }
+
+    /**
+     * Registra una nuova richiesta logica.
+     *
+     * @return identificativo della richiesta
+     */
+    long onRequest() {
+        requests.increment();
+        return requestSequence.incrementAndGet();
+    }
+
+    void onAttempt(long requestId, int attempt, URI endpoint, int statusCode,
+            Class<? extends Throwable> exceptionType, long latencyNanos, long backoffNanos) {
+        attempts.increment();
+        if (exceptionType != null) {
+            failedAttempts.increment();
+        }
+        if (trace != null) {
+            trace.record(requestId, attempt, endpoint, statusCode, exceptionType, latencyNanos,
+                    backoffNanos);
+        }
+    }
+
+    void onRequestFailed() {
+        failedRequests.increment();
+    }
+
+    void onCompressedAttempt(long savedBytes) {
+        compressionSavedBytes.add(savedBytes);
+    }
+
+    /**
+     * Traccia dei tentativi.
+     *
+     * @return traccia oppure null se non abilitata
+     */
+    public RetryAttemptTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Registra il monitor sul MBeanServer di piattaforma.
+     *
+     * @param name nome JMX, ad esempio <code>it.eng.parer.retry:type=RestRetryInterceptor,name=crypto</code>
+     *
+     * @return nome con cui è stato registrato il monitor
+     */
+    public synchronized ObjectName register(String name) {
+        try {
+            ObjectName on = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            this.objectName = on;
+            return on;
+        } catch (JMException e) {
+            throw new IllegalStateException("Impossibile registrare il MBean " + name, e);
+        }
+    }
+
+    /**
+     * Rimuove il monitor dal MBeanServer di piattaforma, se registrato.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Impossibile rimuovere il MBean " + objectName, e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    @Override
+    public List<String> getEndpoints() {
+        List<String> result = new ArrayList<>(endpoints.size());
+        for (URI endpoint : endpoints) {
+            result.add(endpoint.toString());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, String> getConfiguration() {
+        return retryClient.getParametri();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    @Override
+    public long getFailedAttempts() {
+        return failedAttempts.sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public int getTraceCapacity() {
+        return trace != null ? trace.getCapacity() : 0;
+    }
+
+    @Override
+    public long getTraceDropped() {
+        return trace != null ? trace.getDropped() : 0L;
+    }
+
+    @Override
+    public List<String> dumpTrace() {
+        return dump(e -> true);
+    }
+
+    @Override
+    public List<String> dumpTraceForRequest(long requestId) {
+        return dump(e -> e.getRequestId() == requestId);
+    }
+
+    @Override
+    public List<String> dumpSlowAttempts(long minLatencyMillis) {
+        return dump(e -> e.getLatencyMillis() >= minLatencyMillis);
+    }
+
+    @Override
+    public void resetCounters() {
+        requests.reset();
+        attempts.reset();
+        failedAttempts.reset();
+        failedRequests.reset();
+        compressionSavedBytes.reset();
+    }
+
+    private List<String> dump(Predicate<RetryAttemptTrace.Entry> filter) {
+        List<String> result = new ArrayList<>();
+        if (trace == null) {
+            return result;
+        }
+        for (RetryAttemptTrace.Entry entry : trace.snapshot()) {
+            if (filter.test(entry)) {
+                result.add(entry.toString());
+            }
+        }
+        return result;
+    }
+}
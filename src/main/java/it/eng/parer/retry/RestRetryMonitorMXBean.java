@@ -0,0 +1,121 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interfaccia JMX per l'ispezione di un {@link RestRetryInterceptor}: configurazione corrente,
+ * contatori e traccia dei tentativi.
+ *
+ * @author Snidero_L
+ */
+public interface RestRetryMonitorMXBean {
+
+    /**
+     * Endpoint alternativi configurati sull'interceptor.
+     *
+     * @return lista di endpoint
+     */
+    List<String> getEndpoints();
+
+    /**
+     * Parametri con cui è stata costruita la {@link ParerRetryConfiguration}.
+     *
+     * @return mappa nome parametro / valore
+     */
+    Map<String, String> getConfiguration();
+
+    /**
+     * Numero di richieste logiche intercettate.
+     *
+     * @return numero di richieste
+     */
+    long getRequests();
+
+    /**
+     * Numero di tentativi effettuati (primo invio e retry).
+     *
+     * @return numero di tentativi
+     */
+    long getAttempts();
+
+    /**
+     * Numero di tentativi falliti.
+     *
+     * @return numero di tentativi falliti
+     */
+    long getFailedAttempts();
+
+    /**
+     * Numero di richieste logiche terminate con errore dopo aver esaurito i tentativi.
+     *
+     * @return numero di richieste fallite
+     */
+    long getFailedRequests();
+
+    /**
+     * Byte non trasmessi grazie alla compressione del corpo delle richieste.
+     *
+     * @return byte risparmiati
+     */
+    long getCompressionSavedBytes();
+
+    /**
+     * Capacità della traccia dei tentativi; 0 se la traccia non è abilitata.
+     *
+     * @return capacità della traccia
+     */
+    int getTraceCapacity();
+
+    /**
+     * Tentativi non registrati nella traccia perché lo slot era occupato da un altro tentativo
+     * contemporaneo.
+     *
+     * @return tentativi scartati
+     */
+    long getTraceDropped();
+
+    /**
+     * Tentativi presenti nella traccia, dal più vecchio al più recente.
+     *
+     * @return descrizione dei tentativi
+     */
+    List<String> dumpTrace();
+
+    /**
+     * Tentativi presenti nella traccia relativi ad una singola richiesta logica.
+     *
+     * @param requestId identificativo della richiesta, riportato nel log di debug dei tentativi di
+     *                  {@link RestRetryInterceptor}
+     *
+     * @return descrizione dei tentativi
+     */
+    List<String> dumpTraceForRequest(long requestId);
+
+    /**
+     * Tentativi presenti nella traccia con latenza almeno pari a quella indicata.
+     *
+     * @param minLatencyMillis latenza minima in ms
+     *
+     * @return descrizione dei tentativi
+     */
+    List<String> dumpSlowAttempts(long minLatencyMillis);
+
+    /**
+     * Azzera i contatori (la traccia non viene modificata).
+     */
+    void resetCounters();
+}
@@ -0,0 +1,248 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.lang.invoke.VarHandle;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Buffer circolare a dimensione fissa, preallocato, che registra i singoli tentativi effettuati da
+ * {@link RestRetryInterceptor}.
+ *
+ * La registrazione ({@link #record(long, int, URI, int, Class, long, long)}) è lock-free e non
+ * alloca oggetti: ogni scrittore si aggiudica uno slot tramite un contatore atomico, lo riserva con
+ * una CAS e pubblica il numero di sequenza solo al termine della scrittura. Se lo slot è già
+ * riservato da un altro scrittore (più tentativi contemporanei della capacità del buffer) oppure
+ * contiene già un tentativo più recente, il tentativo viene scartato (vedi {@link #getDropped()}).
+ * La lettura ({@link #snapshot()}) scarta gli slot sovrascritti durante la copia. Quando il buffer
+ * è pieno i tentativi più vecchi vengono sovrascritti.
+ *
+ * @author Snidero_L
+ */
+public class RetryAttemptTrace {
+
+    /**
+     * Valore registrato come status code quando il tentativo non ha prodotto una risposta HTTP.
+     */
+    public static final int NO_STATUS = -1;
+
+    private static final long IN_PROGRESS = -1L;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLongArray published;
+
+    private final long[] timestamps;
+    private final long[] requestIds;
+    private final int[] attempts;
+    private final URI[] endpoints;
+    private final int[] statusCodes;
+    private final Class<?>[] exceptionTypes;
+    private final long[] latenciesNanos;
+    private final long[] backoffsNanos;
+
+    /**
+     * Crea il buffer. La capacità viene arrotondata alla potenza di due successiva.
+     *
+     * @param requestedCapacity numero di tentativi da conservare (maggiore di zero)
+     */
+    public RetryAttemptTrace(int requestedCapacity) {
+        if (requestedCapacity <= 0 || requestedCapacity > (1 << 30)) {
+            throw new IllegalArgumentException(
+                    "Capacità del buffer non valida: " + requestedCapacity);
+        }
+        this.capacity = requestedCapacity == 1 ? 1
+                : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        this.timestamps = new long[capacity];
+        this.requestIds = new long[capacity];
+        this.attempts = new int[capacity];
+        this.endpoints = new URI[capacity];
+        this.statusCodes = new int[capacity];
+        this.exceptionTypes = new Class<?>[capacity];
+        this.latenciesNanos = new long[capacity];
+        this.backoffsNanos = new long[capacity];
+    }
+
+    /**
+     * Capacità effettiva del buffer.
+     *
+     * @return numero massimo di tentativi conservati
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Numero totale di tentativi registrati dalla creazione del buffer (inclusi quelli
+     * sovrascritti).
+     *
+     * @return tentativi registrati
+     */
+    public long getRecorded() {
+        return cursor.get();
+    }
+
+    /**
+     * Numero di tentativi scartati perché il relativo slot era occupato da un altro scrittore.
+     *
+     * @return tentativi scartati
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Registra un tentativo. Non alloca oggetti e non acquisisce lock.
+     *
+     * @param requestId     identificativo della richiesta logica
+     * @param attempt       numero del tentativo (a partire da 1)
+     * @param endpoint      URI invocato
+     * @param statusCode    status code HTTP ottenuto oppure {@link #NO_STATUS}
+     * @param exceptionType tipo dell'eccezione ottenuta oppure null
+     * @param latencyNanos  durata del tentativo in ns
+     * @param backoffNanos  attesa trascorsa dal tentativo precedente in ns
+     */
+    public void record(long requestId, int attempt, URI endpoint, int statusCode,
+            Class<? extends Throwable> exceptionType, long latencyNanos, long backoffNanos) {
+        final long seq = cursor.getAndIncrement();
+        final int slot = (int) (seq & mask);
+
+        // lo slot contiene un tentativo pubblicato (o nessuno, 0) con sequenza precedente
+        final long previous = published.get(slot);
+        if (previous == IN_PROGRESS || previous > seq
+                || !published.compareAndSet(slot, previous, IN_PROGRESS)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        VarHandle.storeStoreFence();
+
+        timestamps[slot] = System.currentTimeMillis();
+        requestIds[slot] = requestId;
+        attempts[slot] = attempt;
+        endpoints[slot] = endpoint;
+        statusCodes[slot] = statusCode;
+        exceptionTypes[slot] = exceptionType;
+        latenciesNanos[slot] = latencyNanos;
+        backoffsNanos[slot] = backoffNanos;
+
+        published.set(slot, seq + 1);
+    }
+
+    /**
+     * Copia dei tentativi attualmente presenti nel buffer, dal più vecchio al più recente.
+     *
+     * @return lista dei tentativi
+     */
+    public List<Entry> snapshot() {
+        final long end = cursor.get();
+        final long start = Math.max(0, end - capacity);
+        List<Entry> result = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            final int slot = (int) (seq & mask);
+            if (published.get(slot) != seq + 1) {
+                // slot non ancora pubblicato oppure già sovrascritto
+                continue;
+            }
+            Entry entry = new Entry(timestamps[slot], requestIds[slot], attempts[slot],
+                    endpoints[slot], statusCodes[slot], exceptionTypes[slot],
+                    latenciesNanos[slot], backoffsNanos[slot]);
+            VarHandle.acquireFence();
+            if (published.get(slot) == seq + 1) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Singolo tentativo registrato nel buffer.
+     */
+    public static final class Entry {
+
+        private final long timestamp;
+        private final long requestId;
+        private final int attempt;
+        private final URI endpoint;
+        private final int statusCode;
+        private final Class<?> exceptionType;
+        private final long latencyNanos;
+        private final long backoffNanos;
+
+        Entry(long timestamp, long requestId, int attempt, URI endpoint, int statusCode,
+                Class<?> exceptionType, long latencyNanos, long backoffNanos) {
+            this.timestamp = timestamp;
+            this.requestId = requestId;
+            this.attempt = attempt;
+            this.endpoint = endpoint;
+            this.statusCode = statusCode;
+            this.exceptionType = exceptionType;
+            this.latencyNanos = latencyNanos;
+            this.backoffNanos = backoffNanos;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getRequestId() {
+            return requestId;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+
+        public URI getEndpoint() {
+            return endpoint;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public Class<?> getExceptionType() {
+            return exceptionType;
+        }
+
+        public long getLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        }
+
+        public long getBackoffMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(backoffNanos);
+        }
+
+        @Override
+        public String toString() {
+            final String esito;
+            if (statusCode != NO_STATUS) {
+                esito = String.valueOf(statusCode);
+            } else {
+                esito = exceptionType != null ? exceptionType.getName() : "nessuna risposta";
+            }
+            return "request=" + requestId + " attempt=" + attempt + " endpoint=" + endpoint
+                    + " esito=" + esito + " latency=" + getLatencyMillis() + "ms backoff="
+                    + getBackoffMillis() + "ms timestamp=" + timestamp;
+        }
+    }
+}
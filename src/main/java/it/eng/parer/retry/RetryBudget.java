@@ -0,0 +1,92 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Budget di retry: ogni richiesta accantona una frazione di retry, ogni retry ne consuma uno. Il
+ * saldo è limitato superiormente, in modo che durante un degrado prolungato il numero di retry non
+ * superi una frazione del traffico.
+ *
+ * @author Snidero_L
+ */
+public class RetryBudget implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long UNIT = 1000L;
+
+    private final long depositPerRequest;
+    private final long maxBalance;
+    private final AtomicLong balance;
+
+    /**
+     * Crea il budget.
+     *
+     * @param ratio      retry accantonati per ogni richiesta (es. 0.2 = un retry ogni 5
+     *                   richieste)
+     * @param maxRetries numero massimo di retry accumulabili (è anche il saldo iniziale)
+     */
+    public RetryBudget(double ratio, int maxRetries) {
+        if (ratio < 0 || maxRetries < 0) {
+            throw new IllegalArgumentException("Parametri del budget di retry non validi");
+        }
+        this.depositPerRequest = (long) (ratio * UNIT);
+        this.maxBalance = maxRetries * UNIT;
+        this.balance = new AtomicLong(this.maxBalance);
+    }
+
+    /**
+     * Accantona la quota di una nuova richiesta.
+     */
+    public void deposit() {
+        if (depositPerRequest == 0) {
+            return;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + depositPerRequest)));
+    }
+
+    /**
+     * Consuma un retry.
+     *
+     * @return true se il budget consente il retry
+     */
+    public boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < UNIT) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - UNIT));
+        return true;
+    }
+
+    /**
+     * Retry attualmente disponibili.
+     *
+     * @return numero di retry disponibili
+     */
+    public long getAvailable() {
+        return balance.get() / UNIT;
+    }
+}
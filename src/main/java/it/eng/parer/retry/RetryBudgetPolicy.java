@@ -0,0 +1,78 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryPolicy;
+
+/**
+ * {@link RetryPolicy} che subordina ogni retry alla disponibilità di un {@link RetryBudget}.
+ *
+ * @author Snidero_L
+ */
+public class RetryBudgetPolicy implements RetryPolicy {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String BUDGET_GRANTED = "parer.retry.budget.granted";
+
+    private final RetryPolicy delegate;
+    private final RetryBudget budget;
+
+    public RetryBudgetPolicy(RetryPolicy delegate, RetryBudget budget) {
+        this.delegate = delegate;
+        this.budget = budget;
+    }
+
+    @Override
+    public boolean canRetry(RetryContext context) {
+        if (!delegate.canRetry(context)) {
+            return false;
+        }
+        int retryCount = context.getRetryCount();
+        if (retryCount == 0) {
+            return true;
+        }
+        // RetryTemplate valuta canRetry più volte per lo stesso tentativo
+        Object granted = context.getAttribute(BUDGET_GRANTED);
+        if (granted != null && (Integer) granted == retryCount) {
+            return true;
+        }
+        if (budget.tryWithdraw()) {
+            context.setAttribute(BUDGET_GRANTED, retryCount);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public RetryContext open(RetryContext parent) {
+        budget.deposit();
+        return delegate.open(parent);
+    }
+
+    @Override
+    public void close(RetryContext context) {
+        delegate.close(context);
+    }
+
+    @Override
+    public void registerThrowable(RetryContext context, Throwable throwable) {
+        delegate.registerThrowable(context, throwable);
+    }
+
+    public RetryBudget getBudget() {
+        return budget;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Corsia (lane) di priorità di una richiesta. Ogni lane può avere la propria configurazione di
+ * retry (vedi {@link ParerRetryConfigurationBuilder#withLane(RetryLane, ParerRetryConfigurationBuilder)}).
+ *
+ * La lane di una richiesta intercettata da {@link RestRetryInterceptor} viene determinata, in
+ * ordine:
+ * <ul>
+ * <li>dall'header {@value #HEADER};</li>
+ * <li>dalla lane associata al thread corrente tramite {@link #call(RetryLane, Callable)};</li>
+ * <li>altrimenti è {@link #INTERACTIVE}.</li>
+ * </ul>
+ *
+ * @author Snidero_L
+ */
+public enum RetryLane {
+
+    /**
+     * Traffico generato dagli utenti, sensibile alla latenza. Lane predefinita.
+     */
+    INTERACTIVE,
+    /**
+     * Traffico massivo (es. job di archiviazione), che può rallentare in caso di degrado.
+     */
+    BATCH;
+
+    /**
+     * Header HTTP con cui indicare la lane della richiesta. L'header viene rimosso da
+     * {@link RestRetryInterceptor} e non è inviato all'endpoint.
+     */
+    public static final String HEADER = "X-Parer-Retry-Lane";
+
+    private static final ThreadLocal<RetryLane> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Esegue l'operazione associando la lane indicata al thread corrente.
+     *
+     * @param <T>       risultato atteso
+     * @param lane      lane da associare
+     * @param operation operazione da eseguire (ad esempio una chiamata tramite RestTemplate)
+     *
+     * @return risultato dell'operazione
+     *
+     * @throws Exception eccezione sollevata dall'operazione
+     */
+    public static <T> T call(RetryLane lane, Callable<T> operation) throws Exception {
+        RetryLane previous = CURRENT.get();
+        CURRENT.set(lane);
+        try {
+            return operation.call();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Lane associata al thread corrente.
+     *
+     * @return lane oppure null se non associata
+     */
+    public static RetryLane current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Determina la lane di una richiesta.
+     *
+     * @param headers header della richiesta
+     *
+     * @return lane della richiesta
+     */
+    public static RetryLane resolve(HttpHeaders headers) {
+        String value = headers.getFirst(HEADER);
+        if (value != null) {
+            try {
+                return RetryLane.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // valore non riconosciuto, si prosegue con le altre regole
+            }
+        }
+        RetryLane current = CURRENT.get();
+        return current != null ? current : INTERACTIVE;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+/**
+ * Modalità con cui {@link RestRetryInterceptor} sceglie l'endpoint di ciascun tentativo.
+ *
+ * @author Snidero_L
+ */
+public enum RoutingMode {
+
+    /**
+     * Il primo tentativo utilizza l'URI della richiesta, i successivi ruotano sugli endpoint
+     * alternativi trattati come lista circolare. Modalità predefinita.
+     */
+    ROUND_ROBIN,
+    /**
+     * Ogni tentativo utilizza il primo endpoint disponibile in ordine di priorità: prima l'endpoint
+     * preferito, poi gli endpoint alternativi nell'ordine indicato. Un endpoint che fallisce viene
+     * escluso per un periodo minimo, trascorso il quale riceve una richiesta di prova: se questa ha
+     * successo il traffico torna sull'endpoint (failback).
+     */
+    PREFERRED_AFFINITY
+}
@@ -0,0 +1,135 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+/**
+ * Test dell'affinità con l'endpoint preferito
+ *
+ * @author Snidero_L
+ */
+class TestEndpointAffinity {
+
+    private static final URI PREFERRED = URI.create("http://preferred:8092/");
+    private static final URI ALTERNATIVE = URI.create("http://alternative:8092/");
+    private static final URI ENDPOINT = URI.create("http://preferred:8092/api/tst");
+
+    private final List<String> hosts = new CopyOnWriteArrayList<>();
+    private volatile boolean preferredDown = true;
+
+    private final ClientHttpRequestExecution execution = (request, body) -> {
+        hosts.add(request.getURI().getHost());
+        if (preferredDown && "preferred".equals(request.getURI().getHost())) {
+            throw new ConnectException("Connection refused");
+        }
+        return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+    };
+
+    private List<String> call(RestRetryInterceptor interceptor) throws IOException {
+        hosts.clear();
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, ENDPOINT), new byte[0],
+                execution);
+        return hosts;
+    }
+
+    @Test
+    void testSingleProbe() {
+        EndpointState state = new EndpointState();
+        state.onFailure(0L, 1, false);
+        assertEquals(EndpointState.Route.REFUSED, state.tryRoute(50L, 100L));
+        assertEquals(EndpointState.Route.PROBE, state.tryRoute(200L, 100L));
+        assertEquals(EndpointState.Route.REFUSED, state.tryRoute(200L, 100L));
+
+        // il fallimento di un'altra richiesta non libera la prova in corso
+        state.onFailure(200L, 1, false);
+        assertEquals(EndpointState.Route.REFUSED, state.tryRoute(400L, 100L));
+
+        state.onSuccess(true);
+        assertEquals(EndpointState.Route.ROUTED, state.tryRoute(400L, 100L));
+    }
+
+    @Test
+    void testFailbackToPreferred() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .withPreferredEndpointAffinity(100L).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(PREFERRED,
+                Arrays.asList(ALTERNATIVE), retryClient);
+
+        assertEquals(Arrays.asList("preferred", "alternative"), call(interceptor));
+        // durante l'esclusione le richieste vanno direttamente all'endpoint alternativo
+        assertEquals(Arrays.asList("alternative"), call(interceptor));
+
+        preferredDown = false;
+        Thread.sleep(150L);
+        assertEquals(Arrays.asList("preferred"), call(interceptor));
+        assertEquals(Arrays.asList("preferred"), call(interceptor));
+    }
+
+    @Test
+    void testFailureThreshold() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .withPreferredEndpointAffinity(60_000L, 2).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(PREFERRED,
+                Arrays.asList(ALTERNATIVE), retryClient);
+
+        assertEquals(Arrays.asList("preferred", "alternative"), call(interceptor));
+        assertEquals(Arrays.asList("preferred", "alternative"), call(interceptor));
+        assertEquals(Arrays.asList("alternative"), call(interceptor));
+    }
+
+    @Test
+    void testEncodingRejectionKeepsPreferred() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .withPreferredEndpointAffinity(60_000L)
+                .withRequestCompression(1024, new GzipRequestBodyEncoder()).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(PREFERRED,
+                Arrays.asList(ALTERNATIVE), retryClient);
+
+        // l'endpoint preferito non accetta il corpo compresso
+        ClientHttpRequestExecution rejectGzip = (request, body) -> {
+            hosts.add(request.getURI().getHost());
+            boolean encoded = request.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING);
+            return new MockClientHttpResponse(new byte[0],
+                    encoded && "preferred".equals(request.getURI().getHost())
+                            ? HttpStatus.UNSUPPORTED_MEDIA_TYPE : HttpStatus.OK);
+        };
+
+        // il tentativo successivo al 415 va allo stesso endpoint, senza codifica
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT),
+                new byte[4096], rejectGzip);
+        assertEquals(Arrays.asList("preferred", "preferred"), hosts);
+
+        // l'endpoint preferito non viene escluso
+        hosts.clear();
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT),
+                new byte[4096], rejectGzip);
+        assertEquals(Arrays.asList("preferred"), hosts);
+    }
+}
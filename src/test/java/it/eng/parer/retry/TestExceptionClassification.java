@@ -0,0 +1,141 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Test della classificazione delle eccezioni e della quarantena degli endpoint
+ *
+ * @author Snidero_L
+ */
+class TestExceptionClassification {
+
+    private static final URI ENDPOINT = URI.create("http://unknown:8092/api/tst");
+    private static final URI ALTERNATIVE = URI.create("http://alternative:8092/");
+
+    private final List<String> hosts = new CopyOnWriteArrayList<>();
+
+    private final ClientHttpRequestExecution unknownHost = (request, body) -> {
+        hosts.add(request.getURI().getHost());
+        if ("unknown".equals(request.getURI().getHost())) {
+            throw new UnknownHostException("unknown");
+        }
+        return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+    };
+
+    private void call(RestRetryInterceptor interceptor, ClientHttpRequestExecution execution)
+            throws IOException {
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, ENDPOINT), new byte[0],
+                execution);
+    }
+
+    @Test
+    void testDefaultClassification() {
+        ParerExceptionClassifier classifier = new ParerExceptionClassifier();
+        assertTrue(classifier.isPermanent(
+                new RestClientException("errore", new UnknownHostException("unknown"))));
+        assertFalse(classifier.isPermanent(new IllegalArgumentException("599")));
+        assertFalse(classifier.isPermanent(new EndpointFailoverException("failover",
+                new UnknownHostException("unknown"))));
+    }
+
+    @Test
+    void testFailoverWithoutQuarantine() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .withEndpointQuarantine(0).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(Arrays.asList(ALTERNATIVE),
+                retryClient);
+
+        call(interceptor, unknownHost);
+        assertEquals(Arrays.asList("unknown", "alternative"), hosts);
+    }
+
+    @Test
+    void testQuarantinedEndpointSkipped() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(
+                Arrays.asList(URI.create("http://unknown:8092/"), ALTERNATIVE), retryClient);
+
+        call(interceptor, unknownHost);
+        assertEquals(Arrays.asList("unknown", "alternative"), hosts);
+
+        hosts.clear();
+        call(interceptor, unknownHost);
+        assertEquals(Arrays.asList("alternative"), hosts);
+    }
+
+    @Test
+    void testFailFastWithoutAlternative() {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(
+                Arrays.asList(URI.create("http://unknown:8092/")), retryClient);
+
+        assertThrows(RestClientException.class, () -> call(interceptor, unknownHost));
+        assertEquals(Arrays.asList("unknown"), hosts);
+    }
+
+    @Test
+    void testNonStandardStatusRetried() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(Arrays.asList(ALTERNATIVE),
+                retryClient);
+
+        AtomicInteger closed = new AtomicInteger();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            hosts.add(request.getURI().getHost());
+            return new MockClientHttpResponse(new byte[0], 599) {
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                    super.close();
+                }
+            };
+        };
+
+        assertThrows(RestClientException.class, () -> call(interceptor, execution));
+        assertEquals(3, hosts.size());
+        assertEquals(3, closed.get());
+
+        // nessun endpoint è stato messo in quarantena
+        hosts.clear();
+        call(interceptor, (request, body) -> {
+            hosts.add(request.getURI().getHost());
+            return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+        });
+        assertEquals(Arrays.asList("unknown"), hosts);
+    }
+}
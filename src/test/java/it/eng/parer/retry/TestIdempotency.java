@@ -0,0 +1,184 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Test del retry delle richieste non idempotenti
+ *
+ * @author Snidero_L
+ */
+class TestIdempotency {
+
+    private static final URI ENDPOINT = URI.create("http://primary:8092/api/tst");
+    private static final List<URI> ENDPOINTS = Arrays.asList(
+            URI.create("http://secondary:8092/"), URI.create("http://tertiary:8092/"));
+
+    private final List<HttpHeaders> sent = new CopyOnWriteArrayList<>();
+
+    /**
+     * Esecuzione che fallisce con gli esiti indicati, nell'ordine, e poi risponde 200.
+     *
+     * @param outcomes eccezioni (IOException) o status code
+     *
+     * @return esecuzione
+     */
+    private ClientHttpRequestExecution failing(Object... outcomes) {
+        return (request, body) -> {
+            sent.add(request.getHeaders());
+            int attempt = sent.size() - 1;
+            Object outcome = attempt < outcomes.length ? outcomes[attempt] : HttpStatus.OK;
+            if (outcome instanceof IOException) {
+                throw (IOException) outcome;
+            }
+            return new MockClientHttpResponse(new byte[0], (HttpStatus) outcome);
+        };
+    }
+
+    private ClientHttpResponse call(ParerRetryConfiguration retryClient, HttpMethod method,
+            ClientHttpRequestExecution execution) throws IOException {
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, retryClient);
+        return interceptor.intercept(new MockClientHttpRequest(method, ENDPOINT), new byte[0],
+                execution);
+    }
+
+    private static ParerRetryConfiguration maxAttempts(int attempts) {
+        return ParerRetryConfiguration.builder().withMaxAttemps(attempts).build();
+    }
+
+    @Test
+    void testNotSentRetried() throws Exception {
+        call(maxAttempts(3), HttpMethod.POST, failing(new ConnectException("Connection refused"),
+                new IOException("I/O error", new ConnectException("Connection refused"))));
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    void testSentNotRetried() {
+        assertThrows(RestClientException.class, () -> call(maxAttempts(3), HttpMethod.POST,
+                failing(new SocketTimeoutException("Read timed out"))));
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    void testIdempotentMethodRetriedAfterSend() throws Exception {
+        call(maxAttempts(3), HttpMethod.PUT,
+                failing(new SocketTimeoutException("Read timed out")));
+        assertEquals(2, sent.size());
+        assertNull(sent.get(0).getFirst(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER));
+    }
+
+    @Test
+    void testNotProcessedStatusRetried() throws Exception {
+        call(maxAttempts(3), HttpMethod.POST,
+                failing(HttpStatus.SERVICE_UNAVAILABLE, HttpStatus.TOO_MANY_REQUESTS));
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    void testUnhandledStatusNotRetried() {
+        assertThrows(RestClientException.class,
+                () -> call(maxAttempts(3), HttpMethod.PATCH, failing(HttpStatus.BAD_GATEWAY)));
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    void testRetryAfterSendEnabled() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .withNonIdempotentRetryAfterSend(true).build();
+        call(retryClient, HttpMethod.POST, failing(new SocketTimeoutException("Read timed out"),
+                HttpStatus.BAD_GATEWAY));
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    void testIdempotencyKeyStable() throws Exception {
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.POST, ENDPOINT);
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, maxAttempts(3));
+        interceptor.intercept(request, new byte[0], failing(new ConnectException("refused"),
+                HttpStatus.SERVICE_UNAVAILABLE));
+
+        assertEquals(3, sent.size());
+        String key = sent.get(0).getFirst(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER);
+        assertNotNull(key);
+        for (HttpHeaders headers : sent) {
+            assertEquals(key, headers.getFirst(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER));
+        }
+        // la richiesta originale non viene modificata
+        assertFalse(request.getHeaders().containsKey(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER));
+
+        // una nuova richiesta ha una chiave diversa
+        sent.clear();
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.POST, ENDPOINT), new byte[0],
+                failing());
+        assertFalse(key.equals(sent.get(0).getFirst(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER)));
+    }
+
+    @Test
+    void testIdempotencyKeyKeptOrDisabled() throws Exception {
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.POST, ENDPOINT);
+        request.getHeaders().set(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER, "chiave");
+        new RestRetryInterceptor(ENDPOINTS, maxAttempts(3)).intercept(request, new byte[0],
+                failing());
+        assertEquals("chiave", sent.get(0).getFirst(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER));
+
+        sent.clear();
+        call(ParerRetryConfiguration.builder().withIdempotencyKey(false).build(), HttpMethod.POST,
+                failing());
+        assertNull(sent.get(0).getFirst(RestRetryInterceptor.IDEMPOTENCY_KEY_HEADER));
+    }
+
+    @Test
+    void testRejectedEncodingRetried() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .withRequestCompression(16).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(
+                Arrays.asList(URI.create("http://primary:8092/")), retryClient);
+        ClientHttpRequestExecution execution = (request, body) -> {
+            sent.add(request.getHeaders());
+            return new MockClientHttpResponse(new byte[0],
+                    request.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)
+                            ? HttpStatus.UNSUPPORTED_MEDIA_TYPE
+                            : HttpStatus.OK);
+        };
+
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.POST, ENDPOINT),
+                new byte[4096], execution);
+        assertEquals(2, sent.size());
+        assertFalse(sent.get(1).containsKey(HttpHeaders.CONTENT_ENCODING));
+    }
+}
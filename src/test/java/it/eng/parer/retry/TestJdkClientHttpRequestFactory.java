@@ -0,0 +1,314 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Test della factory basata su {@link HttpClient} del JDK
+ *
+ * @author Snidero_L
+ */
+class TestJdkClientHttpRequestFactory {
+
+    private static final URI ENDPOINT = URI.create("http://localhost:8092/api/tst");
+
+    private static final class ClosableBody extends ByteArrayInputStream {
+
+        private boolean closed;
+
+        ClosableBody(String content) {
+            super(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * Client che registra la richiesta e restituisce sempre la stessa risposta.
+     */
+    private static final class StubHttpClient extends HttpClient {
+
+        private final int statusCode;
+        private final Map<String, List<String>> headers;
+        private final InputStream body;
+        private HttpRequest request;
+
+        StubHttpClient(int statusCode, Map<String, List<String>> headers, InputStream body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> HttpResponse<T> send(HttpRequest request,
+                HttpResponse.BodyHandler<T> responseBodyHandler) {
+            this.request = request;
+            return (HttpResponse<T>) new HttpResponse<InputStream>() {
+
+                @Override
+                public int statusCode() {
+                    return statusCode;
+                }
+
+                @Override
+                public HttpRequest request() {
+                    return request;
+                }
+
+                @Override
+                public Optional<HttpResponse<InputStream>> previousResponse() {
+                    return Optional.empty();
+                }
+
+                @Override
+                public HttpHeaders headers() {
+                    return HttpHeaders.of(headers, (name, value) -> true);
+                }
+
+                @Override
+                public InputStream body() {
+                    return body;
+                }
+
+                @Override
+                public Optional<SSLSession> sslSession() {
+                    return Optional.empty();
+                }
+
+                @Override
+                public URI uri() {
+                    return request.uri();
+                }
+
+                @Override
+                public Version version() {
+                    return Version.HTTP_2;
+                }
+            };
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                HttpResponse.BodyHandler<T> responseBodyHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                HttpResponse.BodyHandler<T> responseBodyHandler,
+                HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Optional<CookieHandler> cookieHandler() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<Duration> connectTimeout() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Redirect followRedirects() {
+            return Redirect.NEVER;
+        }
+
+        @Override
+        public Optional<ProxySelector> proxy() {
+            return Optional.empty();
+        }
+
+        @Override
+        public SSLContext sslContext() {
+            return null;
+        }
+
+        @Override
+        public SSLParameters sslParameters() {
+            return null;
+        }
+
+        @Override
+        public Optional<Authenticator> authenticator() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Version version() {
+            return Version.HTTP_2;
+        }
+
+        @Override
+        public Optional<Executor> executor() {
+            return Optional.empty();
+        }
+    }
+
+    private static ClientHttpResponse execute(StubHttpClient client) throws Exception {
+        return new JdkClientHttpRequestFactory(client).createRequest(ENDPOINT, HttpMethod.GET)
+                .execute();
+    }
+
+    @Test
+    void testHeaderMapping() throws Exception {
+        Map<String, List<String>> headers = Map.of("content-type",
+                Collections.singletonList("application/json"), "x-parer", Arrays.asList("a", "b"));
+        StubHttpClient client = new StubHttpClient(200, headers, new ClosableBody("{}"));
+
+        ClientHttpResponse response = execute(client);
+
+        assertEquals(MediaType.APPLICATION_JSON, response.getHeaders().getContentType());
+        assertEquals(Arrays.asList("a", "b"), response.getHeaders().get("X-Parer"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> response.getHeaders().add("X-Parer", "c"));
+    }
+
+    @Test
+    void testStatusMapping() throws Exception {
+        ClosableBody body = new ClosableBody("");
+        ClientHttpResponse response = execute(
+                new StubHttpClient(404, Collections.emptyMap(), body));
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+        assertEquals(404, response.getRawStatusCode());
+        assertEquals("Not Found", response.getStatusText());
+        response.close();
+        assertTrue(body.closed);
+
+        ClientHttpResponse nonStandard = execute(
+                new StubHttpClient(599, Collections.emptyMap(), new ClosableBody("")));
+        assertEquals(599, nonStandard.getRawStatusCode());
+        assertEquals("", nonStandard.getStatusText());
+        assertThrows(IllegalArgumentException.class, nonStandard::getStatusCode);
+    }
+
+    @Test
+    void testRequestMapping() throws Exception {
+        StubHttpClient client = new StubHttpClient(200, Collections.emptyMap(),
+                new ClosableBody(""));
+        JdkClientHttpRequestFactory factory = new JdkClientHttpRequestFactory(client);
+        factory.setReadTimeout(Duration.ofSeconds(5));
+
+        ClientHttpRequest request = factory.createRequest(ENDPOINT, HttpMethod.POST);
+        request.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+        request.getHeaders().set("Host", "altro");
+        request.getHeaders().set("Connection", "close");
+        request.getBody().write("abc".getBytes(StandardCharsets.UTF_8));
+        request.execute();
+
+        HttpRequest sent = client.request;
+        assertEquals(ENDPOINT, sent.uri());
+        assertEquals("POST", sent.method());
+        assertEquals(Optional.of(Duration.ofSeconds(5)), sent.timeout());
+        assertEquals(Optional.of("text/plain"), sent.headers().firstValue("Content-Type"));
+        assertFalse(sent.headers().firstValue("Host").isPresent());
+        assertFalse(sent.headers().firstValue("Connection").isPresent());
+        assertEquals(3L, sent.bodyPublisher().get().contentLength());
+
+        factory.setReadTimeout(null);
+        factory.createRequest(ENDPOINT, HttpMethod.GET).execute();
+        assertFalse(client.request.timeout().isPresent());
+        assertEquals(0L, client.request.bodyPublisher().get().contentLength());
+    }
+
+    @Test
+    void testTimeoutMapping() {
+        JdkClientHttpRequestFactory factory = new JdkClientHttpRequestFactory(1500);
+        HttpClient client = factory.getHttpClient();
+        assertEquals(Optional.of(Duration.ofMillis(1500)), client.connectTimeout());
+        assertEquals(Duration.ofMillis(1500), factory.getReadTimeout());
+        assertEquals(HttpClient.Version.HTTP_2, client.version());
+        assertEquals(HttpClient.Redirect.NEVER, client.followRedirects());
+    }
+
+    @Test
+    void testEndpointSwitchOnConnectionRefused() throws Exception {
+        // porta libera su cui non è in ascolto nessuno
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/tst", exchange -> {
+            byte[] response = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        try {
+            URI available = URI.create("http://localhost:" + server.getAddress().getPort());
+            ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder()
+                    .withMaxAttemps(2).withBackoffPeriod(10L).build();
+            RestTemplate restTemplate = new RestTemplate(new JdkClientHttpRequestFactory(2000));
+            restTemplate.getInterceptors()
+                    .add(new RestRetryInterceptor(Arrays.asList(available), retryClient));
+
+            // la POST non è idempotente: passa all'altro endpoint solo perché non è stata inviata
+            String body = restTemplate.postForObject(
+                    "http://localhost:" + closedPort + "/api/tst", "richiesta", String.class);
+            assertEquals("ok", body);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
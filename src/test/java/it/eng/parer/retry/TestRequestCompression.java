@@ -0,0 +1,157 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+/**
+ * Test della compressione del corpo delle richieste
+ *
+ * @author Snidero_L
+ */
+class TestRequestCompression {
+
+    private static final URI ENDPOINT = URI.create("http://localhost:8092/api/tst");
+    private static final List<URI> ENDPOINTS = Arrays.asList(URI.create("http://localhost:8092/"));
+
+    private static final byte[] BODY = new byte[4096];
+
+    /**
+     * Codifica gzip con nome e conteggio delle invocazioni.
+     */
+    private static final class CountingEncoder implements RequestBodyEncoder {
+
+        private final String name;
+        private final AtomicInteger invocations = new AtomicInteger();
+
+        CountingEncoder(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return name;
+        }
+
+        @Override
+        public byte[] encode(byte[] body) throws IOException {
+            invocations.incrementAndGet();
+            return new GzipRequestBodyEncoder().encode(body);
+        }
+    }
+
+    @Test
+    void testBodyEncodedOncePerRequest() throws Exception {
+        CountingEncoder gzip = new CountingEncoder(GzipRequestBodyEncoder.GZIP);
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder()
+                .withMaxAttemps(3).withRequestCompression(1024, gzip).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, retryClient);
+
+        AtomicInteger calls = new AtomicInteger();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            assertEquals(GzipRequestBodyEncoder.GZIP,
+                    request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+            assertEquals(body.length, request.getHeaders().getContentLength());
+            return new MockClientHttpResponse(new byte[0],
+                    calls.incrementAndGet() < 3 ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.OK);
+        };
+
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT), BODY,
+                execution);
+
+        assertEquals(3, calls.get());
+        assertEquals(1, gzip.invocations.get());
+    }
+
+    @Test
+    void testUnsupportedEncodingFallback() throws Exception {
+        CountingEncoder first = new CountingEncoder("x-first");
+        CountingEncoder second = new CountingEncoder("x-second");
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder()
+                .withMaxAttemps(3).withRequestCompression(1024, first, second).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, retryClient);
+
+        List<String> encodings = new CopyOnWriteArrayList<>();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            String encoding = request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+            encodings.add(String.valueOf(encoding));
+            if (encoding != null) {
+                return new MockClientHttpResponse(new byte[0], HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+            }
+            assertArrayEquals(BODY, body);
+            return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+        };
+
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT), BODY,
+                execution);
+        assertEquals(Arrays.asList("x-first", "x-second", "null"), encodings);
+
+        // le richieste successive verso lo stesso endpoint non vengono compresse
+        encodings.clear();
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT);
+        interceptor.intercept(request, BODY, execution);
+        assertEquals(Arrays.asList("null"), encodings);
+        assertNull(request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(1, first.invocations.get());
+        assertEquals(1, second.invocations.get());
+    }
+
+    @Test
+    void testPreferredEncodingRetried() throws Exception {
+        CountingEncoder gzip = new CountingEncoder(GzipRequestBodyEncoder.GZIP);
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder()
+                .withMaxAttemps(2).withRequestCompression(1024, gzip)
+                .withEncodingRetryPeriod(100L).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, retryClient);
+
+        List<String> encodings = new CopyOnWriteArrayList<>();
+        AtomicInteger calls = new AtomicInteger();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            String encoding = request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+            encodings.add(String.valueOf(encoding));
+            return new MockClientHttpResponse(new byte[0], calls.incrementAndGet() == 1
+                    ? HttpStatus.UNSUPPORTED_MEDIA_TYPE : HttpStatus.OK);
+        };
+
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT), BODY,
+                execution);
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT), BODY,
+                execution);
+        assertEquals(Arrays.asList("gzip", "null", "null"), encodings);
+
+        // trascorso il periodo la codifica preferita viene riprovata
+        Thread.sleep(150L);
+        encodings.clear();
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.PUT, ENDPOINT), BODY,
+                execution);
+        assertEquals(Arrays.asList("gzip"), encodings);
+    }
+}
@@ -13,11 +13,13 @@
 
 package it.eng.parer.retry;
 
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.jupiter.api.BeforeAll;
@@ -73,11 +75,8 @@ class TestRetry {
     @BeforeAll
     void setUpClass() {
         BAD_ENDPOINTS.add(URI.create(cryptoLocalEndpoint));
-        BAD_ENDPOINTS.add(URI.create("Br0kenUr1"));
         BAD_ENDPOINTS.add(URI.create("http://localhost:8092/"));
         BAD_ENDPOINTS.add(URI.create("http://localhost:8093/"));
-        BAD_ENDPOINTS.add(URI.create("//////////"));
-        BAD_ENDPOINTS.add(URI.create("../../"));
     }
 
     @BeforeEach
@@ -108,6 +107,23 @@ class TestRetry {
         assertNotNull(parerTST);
     }
 
+    @Test
+    void testMalformedEndpointRejected() {
+        log.info("Test endpoint malformati");
+
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.defaultInstance();
+        for (String malformed : new String[] {
+                "Br0kenUr1", "//////////", "../../", "ftp://localhost/" }) {
+            List<URI> endPoints = new ArrayList<>(BAD_ENDPOINTS);
+            endPoints.add(URI.create(malformed));
+            assertThrows(IllegalArgumentException.class,
+                    () -> new RestRetryInterceptor(endPoints, retryClient));
+        }
+        // nome host con underscore, non valido secondo RFC 2396 ma diffuso nelle reti interne
+        assertDoesNotThrow(() -> new RestRetryInterceptor(
+                Arrays.asList(URI.create("http://parer_crypto:8080/")), retryClient));
+    }
+
     @Test
     void testTSTWithNoValidURL() {
 
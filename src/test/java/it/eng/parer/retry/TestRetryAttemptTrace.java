@@ -0,0 +1,108 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+
+/**
+ * Test della traccia dei tentativi
+ *
+ * @author Snidero_L
+ */
+class TestRetryAttemptTrace {
+
+    private static final URI ENDPOINT = URI.create("http://localhost:8092/api/tst");
+
+    @Test
+    void testCapacityRoundedToPowerOfTwo() {
+        assertEquals(1, new RetryAttemptTrace(1).getCapacity());
+        assertEquals(8, new RetryAttemptTrace(5).getCapacity());
+        assertEquals(16, new RetryAttemptTrace(16).getCapacity());
+        assertThrows(IllegalArgumentException.class, () -> new RetryAttemptTrace(0));
+    }
+
+    @Test
+    void testOldestAttemptsOverwritten() {
+        RetryAttemptTrace trace = new RetryAttemptTrace(4);
+        for (int i = 1; i <= 6; i++) {
+            trace.record(1L, i, ENDPOINT, RetryAttemptTrace.NO_STATUS, ConnectException.class,
+                    1_000_000L, 0L);
+        }
+        List<RetryAttemptTrace.Entry> entries = trace.snapshot();
+        assertEquals(4, entries.size());
+        assertEquals(3, entries.get(0).getAttempt());
+        assertEquals(6, entries.get(3).getAttempt());
+        assertEquals(6L, trace.getRecorded());
+        assertEquals(0L, trace.getDropped());
+    }
+
+    @Test
+    void testMonitorDumpByRequest() {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder()
+                .withAttemptTrace(16).build();
+        RestRetryMonitor monitor = new RestRetryMonitor(List.of(ENDPOINT), retryClient);
+
+        long first = monitor.onRequest();
+        long second = monitor.onRequest();
+        monitor.onAttempt(first, 1, ENDPOINT, RetryAttemptTrace.NO_STATUS,
+                ConnectException.class, 0L, 0L);
+        monitor.onAttempt(second, 1, ENDPOINT, 200, null, 0L, 0L);
+        monitor.onAttempt(first, 2, ENDPOINT, 200, null, 0L, 0L);
+
+        assertEquals(2L, monitor.getRequests());
+        assertEquals(3L, monitor.getAttempts());
+        assertEquals(1L, monitor.getFailedAttempts());
+        assertEquals(2, monitor.dumpTraceForRequest(first).size());
+        assertEquals("16", monitor.getConfiguration().get("attemptTrace"));
+        assertNull(new RestRetryMonitor(List.of(ENDPOINT),
+                ParerRetryConfiguration.defaultInstance()).getTrace());
+    }
+
+    @Test
+    void testErrorRecordedAsFailure() {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(3)
+                .withAttemptTrace(16).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(
+                Arrays.asList(URI.create("http://localhost:8092/")), retryClient);
+
+        assertThrows(StackOverflowError.class,
+                () -> interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, ENDPOINT),
+                        new byte[0], (request, body) -> {
+                            throw new StackOverflowError();
+                        }));
+
+        RestRetryMonitor monitor = interceptor.getMonitor();
+        assertEquals(1L, monitor.getFailedAttempts());
+        assertEquals(StackOverflowError.class,
+                monitor.getTrace().snapshot().get(0).getExceptionType());
+        assertEquals(1, monitor.dumpTrace().size());
+
+        // tentativo senza risposta né eccezione
+        RetryAttemptTrace trace = new RetryAttemptTrace(1);
+        trace.record(1L, 1, ENDPOINT, RetryAttemptTrace.NO_STATUS, null, 0L, 0L);
+        assertTrue(trace.snapshot().get(0).toString().contains("esito=nessuna risposta"));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Test delle lane di priorità e del budget di retry
+ *
+ * @author Snidero_L
+ */
+class TestRetryLane {
+
+    private static final URI ENDPOINT = URI.create("http://localhost:8092/api/tst");
+    private static final List<URI> ENDPOINTS = Arrays.asList(URI.create("http://localhost:8092/"));
+
+    private static MockClientHttpRequest request(RetryLane lane) {
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.GET, ENDPOINT);
+        if (lane != null) {
+            request.getHeaders().set(RetryLane.HEADER, lane.name());
+        }
+        return request;
+    }
+
+    @Test
+    void testResolve() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        assertEquals(RetryLane.INTERACTIVE, RetryLane.resolve(headers));
+        assertEquals(RetryLane.BATCH,
+                RetryLane.call(RetryLane.BATCH, () -> RetryLane.resolve(headers)));
+
+        headers.set(RetryLane.HEADER, "interactive");
+        assertEquals(RetryLane.INTERACTIVE,
+                RetryLane.call(RetryLane.BATCH, () -> RetryLane.resolve(headers)));
+
+        headers.set(RetryLane.HEADER, "sconosciuta");
+        assertEquals(RetryLane.BATCH,
+                RetryLane.call(RetryLane.BATCH, () -> RetryLane.resolve(headers)));
+        assertEquals(null, RetryLane.current());
+    }
+
+    @Test
+    void testLaneHeaderNotSent() throws Exception {
+        List<HttpHeaders> sent = new CopyOnWriteArrayList<>();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            sent.add(request.getHeaders());
+            return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+        };
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS,
+                ParerRetryConfiguration.defaultInstance());
+
+        interceptor.intercept(request(RetryLane.BATCH), new byte[0], execution);
+
+        assertEquals(1, sent.size());
+        assertFalse(sent.get(0).containsKey(RetryLane.HEADER));
+    }
+
+    @Test
+    void testInFlightShare() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder()
+                .withMaxInFlightPerEndpoint(4)
+                .withLane(RetryLane.BATCH, ParerRetryConfiguration.builder().withMaxAttemps(1)
+                        .withInFlightShare(0.5))
+                .build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, retryClient);
+
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            calls.incrementAndGet();
+            if (RetryLane.current() == RetryLane.BATCH) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // la lane BATCH può occupare 2 delle 4 chiamate contemporanee
+            List<Future<ClientHttpResponse>> batch = Arrays.asList(
+                    executor.submit(() -> RetryLane.call(RetryLane.BATCH,
+                            () -> interceptor.intercept(request(null), new byte[0], execution))),
+                    executor.submit(() -> RetryLane.call(RetryLane.BATCH,
+                            () -> interceptor.intercept(request(null), new byte[0], execution))));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            assertThrows(RestClientException.class, () -> interceptor
+                    .intercept(request(RetryLane.BATCH), new byte[0], execution));
+            assertEquals(2, calls.get());
+
+            interceptor.intercept(request(RetryLane.INTERACTIVE), new byte[0], execution)
+                    .close();
+            assertEquals(3, calls.get());
+
+            release.countDown();
+            for (Future<ClientHttpResponse> response : batch) {
+                try (ClientHttpResponse r = response.get(10, TimeUnit.SECONDS)) {
+                    assertEquals(200, r.getRawStatusCode());
+                }
+            }
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testInFlightReleasedOnClose() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(1)
+                .withMaxInFlightPerEndpoint(1).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, retryClient);
+        ClientHttpRequestExecution execution = (request, body) -> new MockClientHttpResponse(
+                new byte[0], HttpStatus.OK);
+
+        // la chiamata resta in corso finché la risposta (e il suo corpo) non viene chiusa
+        ClientHttpResponse response = interceptor.intercept(request(null), new byte[0],
+                execution);
+        assertThrows(RestClientException.class,
+                () -> interceptor.intercept(request(null), new byte[0], execution));
+
+        response.close();
+        response.close();
+        interceptor.intercept(request(null), new byte[0], execution).close();
+    }
+
+    @Test
+    void testInFlightLimitSharedByLanes() throws Exception {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(1)
+                .withMaxInFlightPerEndpoint(2).build();
+        RestRetryInterceptor interceptor = new RestRetryInterceptor(ENDPOINTS, retryClient);
+        ClientHttpRequestExecution execution = (request, body) -> new MockClientHttpResponse(
+                new byte[0], HttpStatus.OK);
+
+        ClientHttpResponse interactive = interceptor.intercept(request(RetryLane.INTERACTIVE),
+                new byte[0], execution);
+        ClientHttpResponse batch = interceptor.intercept(request(RetryLane.BATCH), new byte[0],
+                execution);
+        assertThrows(RestClientException.class, () -> interceptor
+                .intercept(request(RetryLane.BATCH), new byte[0], execution));
+        assertThrows(RestClientException.class, () -> interceptor
+                .intercept(request(RetryLane.INTERACTIVE), new byte[0], execution));
+
+        interactive.close();
+        batch.close();
+        interceptor.intercept(request(RetryLane.BATCH), new byte[0], execution).close();
+    }
+
+    @Test
+    void testRetryBudgetWithdrawnOncePerRetry() {
+        RetryBudget budget = new RetryBudget(0, 2);
+        RetryBudgetPolicy policy = new RetryBudgetPolicy(new SimpleRetryPolicy(5), budget);
+        RetryContext context = policy.open(null);
+
+        policy.registerThrowable(context, new RestClientException("primo"));
+        // RetryTemplate valuta canRetry più volte per lo stesso retry
+        assertTrue(policy.canRetry(context));
+        assertTrue(policy.canRetry(context));
+        assertEquals(1L, budget.getAvailable());
+
+        policy.registerThrowable(context, new RestClientException("secondo"));
+        assertTrue(policy.canRetry(context));
+        assertEquals(0L, budget.getAvailable());
+
+        policy.registerThrowable(context, new RestClientException("terzo"));
+        assertFalse(policy.canRetry(context));
+    }
+
+    @Test
+    void testLaneInheritsConfiguration() {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder()
+                .withLane(RetryLane.BATCH, ParerRetryConfiguration.builder().withMaxAttemps(5))
+                .withPermanentExceptions(IllegalStateException.class).withEndpointQuarantine(0)
+                .build();
+        ParerRetryConfiguration batch = retryClient.forLane(RetryLane.BATCH);
+        assertSame(retryClient.getExceptionClassifier(), batch.getExceptionClassifier());
+        assertEquals(0L, batch.getQuarantinePeriod());
+        assertEquals("5", retryClient.getParametri().get("lane.BATCH.maxAttemps"));
+
+        AtomicInteger calls = new AtomicInteger();
+        assertThrows(IllegalStateException.class, () -> retryClient.execute(RetryLane.BATCH, c -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("permanente");
+        }));
+        assertEquals(1, calls.get());
+
+        ParerRetryConfigurationBuilder compressedLane = ParerRetryConfiguration.builder()
+                .withLane(RetryLane.BATCH,
+                        ParerRetryConfiguration.builder().withRequestCompression(1024));
+        assertThrows(IllegalArgumentException.class, compressedLane::build);
+    }
+}
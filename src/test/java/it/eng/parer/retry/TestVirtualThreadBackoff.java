@@ -0,0 +1,184 @@
+/*
+ * Engineering Ingegneria Informatica S.p.A.
+ *
+ * Copyright (C) 2023 Regione Emilia-Romagna <p/> This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the License, or (at your option)
+ * any later version. <p/> This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Affero General Public License for more details. <p/> You should
+ * have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <https://www.gnu.org/licenses/>.
+ */
+
+package it.eng.parer.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+/**
+ * Test del backoff con i virtual thread. I test sui virtual thread richiedono un JDK 21+ e vengono
+ * saltati altrimenti; il benchmark viene eseguito solo con
+ * <code>-Dparer.retry.benchmark=true</code>.
+ *
+ * @author Snidero_L
+ */
+class TestVirtualThreadBackoff {
+
+    private static final Logger log = LoggerFactory.getLogger(TestVirtualThreadBackoff.class);
+
+    private static final URI PRIMARY = URI.create("http://primary:8092/api/tst");
+    private static final URI SECONDARY = URI.create("http://secondary:8092/");
+
+    private static final long BACKOFF = 200L;
+
+    // il primo tentativo fallisce sempre, il secondo (dopo il backoff) va a buon fine
+    private static final ClientHttpRequestExecution EXECUTION = (request, body) -> {
+        if ("primary".equals(request.getURI().getHost())) {
+            throw new ConnectException("Connection refused");
+        }
+        return new MockClientHttpResponse(new byte[0], HttpStatus.OK);
+    };
+
+    private static ExecutorService virtualThreadExecutor() throws Exception {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException e) {
+            // JDK < 21
+            return null;
+        }
+    }
+
+    private static RestRetryInterceptor interceptor() {
+        ParerRetryConfiguration retryClient = ParerRetryConfiguration.builder().withMaxAttemps(2)
+                .withBackoffPeriod(BACKOFF).withVirtualThreadFriendlyMode().build();
+        return new RestRetryInterceptor(Arrays.asList(SECONDARY), retryClient);
+    }
+
+    private static Callable<Integer> call(RestRetryInterceptor interceptor) {
+        return () -> interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, PRIMARY),
+                new byte[0], EXECUTION).getRawStatusCode();
+    }
+
+    /**
+     * Esegue le attività su virtual thread.
+     *
+     * @return durata complessiva in ms
+     */
+    private static long run(int tasks, Callable<?> task) throws Exception {
+        ExecutorService executor = virtualThreadExecutor();
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            futures.add(executor.submit(task));
+        }
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    void testParkingSleeper() throws Exception {
+        ParkingSleeper sleeper = new ParkingSleeper();
+        long start = System.nanoTime();
+        sleeper.sleep(50L);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50L));
+
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> sleeper.sleep(10_000L));
+    }
+
+    @Test
+    void testParkingSleeperInstalled() throws Exception {
+        RestRetryInterceptor interceptor = interceptor();
+        Thread thread = new Thread(() -> {
+            try {
+                call(interceptor).call();
+            } catch (Exception e) {
+                log.error("Richiesta fallita", e);
+            }
+        });
+        thread.start();
+
+        // durante il backoff il thread è parcheggiato da ParkingSleeper
+        Object blocker = null;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2L);
+        while (blocker == null && thread.isAlive() && System.nanoTime() < deadline) {
+            blocker = LockSupport.getBlocker(thread);
+            Thread.sleep(1L);
+        }
+        thread.join();
+        assertTrue(blocker instanceof ParkingSleeper, "Backoff non eseguito da ParkingSleeper");
+    }
+
+    @Test
+    void testBackoffDoesNotPinCarrier() throws Exception {
+        assumeTrue(virtualThreadExecutor() != null, "Virtual thread non disponibili");
+
+        // 4 attività per carrier: se il carrier resta bloccato durante l'attesa servono almeno 4
+        // backoff consecutivi
+        int tasks = 4 * Runtime.getRuntime().availableProcessors();
+
+        // controllo: un monitor trattenuto durante l'attesa blocca il carrier
+        long pinned = run(tasks, () -> {
+            Object lock = new Object();
+            synchronized (lock) {
+                Thread.sleep(BACKOFF);
+            }
+            return null;
+        });
+        // dal JDK 24 (JEP 491) il monitor non blocca più il carrier: il confronto non è possibile
+        assumeTrue(pinned >= 3 * BACKOFF, "Il controllo non blocca i carrier: " + pinned + " ms");
+
+        RestRetryInterceptor interceptor = interceptor();
+        assertEquals(200, call(interceptor).call());
+        long elapsed = run(tasks, call(interceptor));
+
+        log.info("{} richieste con backoff di {} ms: {} ms (monitor trattenuto: {} ms)", tasks,
+                BACKOFF, elapsed, pinned);
+        assertTrue(elapsed < pinned / 2,
+                "Il backoff blocca i carrier: " + elapsed + " ms, controllo " + pinned + " ms");
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "parer.retry.benchmark", matches = "true")
+    void benchmarkVirtualThreads() throws Exception {
+        assumeTrue(virtualThreadExecutor() != null, "Virtual thread non disponibili");
+
+        final int requests = 20_000;
+        RestRetryInterceptor interceptor = interceptor();
+        long elapsed = run(requests, call(interceptor));
+        log.info("{} richieste con un retry ciascuna in {} ms ({} req/s, carrier {})", requests,
+                elapsed, requests * 1000L / Math.max(1, elapsed),
+                Runtime.getRuntime().availableProcessors());
+        assertEquals(requests, interceptor.getMonitor().getRequests());
+        assertEquals(0L, interceptor.getMonitor().getFailedRequests());
+    }
+}